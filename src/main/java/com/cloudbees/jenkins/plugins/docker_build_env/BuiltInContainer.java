@@ -6,6 +6,7 @@ import hudson.FilePath;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildBadgeAction;
 import hudson.model.EnvironmentContributingAction;
+import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.listeners.SCMListener;
@@ -15,9 +16,15 @@ import hudson.scm.SCM;
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Used to determine if launcher has to be decorated to execute in container, after SCM checkout completed.
@@ -27,15 +34,55 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
 
     /* package */ String image;
 
+    /* package */ String imageDigest;
+
+    /* package */ String imageId;
+
+    /** Image build container is started from : {@link #image} with tools baked in, or a dependency snapshot */
+    /* package */ transient String runImage;
+
     /* package */ transient String container;
 
     private transient boolean enable;
     private final transient Docker docker;
+    /* package */ transient NodeResourceAllocator.Allocation resources;
+
+    /* package */ transient Future<String> imagePreparation;
+
+    /* package */ transient String network;
+
+    /* package */ transient String userId;
+
+    /* package */ transient boolean hostNetwork;
+
+    /* package */ transient WorkspaceSync sync;
+
+    /** Key to park container with in {@link ContainerPool} after a successful build, <code>null</code> if not kept alive */
+    /* package */ transient String poolKey;
+
+    /** Idle time (in minutes) before a parked container is evicted */
+    /* package */ transient int keepAliveTimeout;
+
+    /** Dependency snapshot to commit build container as after a successful build, <code>null</code> if none */
+    /* package */ transient DependencySnapshot dependencySnapshot;
+
+    /* package */ transient String snapshot;
+
+    /* package */ transient boolean parked;
+
+    /** Environment to pass to <code>docker exec</code>, as container has been started by a previous build */
+    /* package */ transient EnvVars execEnvironment;
+
+    /* package */ final transient List<String> sidecars = Collections.synchronizedList(new ArrayList<String>());
     private List<Integer> ports = new ArrayList<Integer>();
     private Map<String,String> volumes = new HashMap<String,String>();
+    private Map<String,String> tmpfs = new HashMap<String,String>();
+    private DockerReport report;
+    private ResourceUsage usage;
 
     public BuiltInContainer(Docker docker) {
         this.docker = docker;
+        this.report = docker.getReport();
     }
 
     public void enable() {
@@ -58,6 +105,52 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
         return image;
     }
 
+    /**
+     * @return digest of the image used to run this build, so the build can be reproduced even if image has been
+     * re-tagged since.
+     */
+    public String getImageDigest() {
+        return imageDigest;
+    }
+
+    /**
+     * @return ID of the image used to run this build, <code>null</code> for builds ran before it was recorded. Used by
+     * next builds as layer cache source when the image has to be rebuilt.
+     */
+    public String getImageId() {
+        return imageId;
+    }
+
+    /* package */ String getRunImage() {
+        return runImage != null ? runImage : image;
+    }
+
+    /**
+     * @return report on image preparation, <code>null</code> for builds ran before it was introduced.
+     */
+    public DockerReport getReport() {
+        return report;
+    }
+
+    /**
+     * @return resources used by build container, <code>null</code> if not sampled.
+     */
+    public ResourceUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * Start sampling resources used by build container. Only supported when docker daemon runs on slave.
+     */
+    /* package */ void sampleUsage() throws IOException, InterruptedException {
+        if (!docker.isLocal()) return;
+        int pid = docker.getContainerPid(container);
+        if (pid > 0) {
+            usage = new ResourceUsage();
+            usage.start(docker.getLauncher().getChannel(), pid);
+        }
+    }
+
     public String getDisplayName() {
         return "built inside docker container";
     }
@@ -70,15 +163,148 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
         return docker;
     }
 
+    /**
+     * Wait for image preparation started before SCM checkout to complete.
+     */
+    /* package */ String waitForImagePreparation() throws IOException, InterruptedException {
+        try {
+            return imagePreparation.get();
+        } catch (InterruptedException e) {
+            imagePreparation.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Failed to prepare Docker image", cause);
+        } finally {
+            imagePreparation = null;
+        }
+    }
+
+    /**
+     * Abort image preparation if build completes (for sample SCM checkout failed) before it has been used.
+     */
+    /* package */ void cancelImagePreparation() {
+        Future<String> f = imagePreparation;
+        if (f != null) {
+            f.cancel(true);
+            imagePreparation = null;
+        }
+    }
+
+    /**
+     * @return host for maven process inside container to connect to Jenkins maven agent running on slave
+     */
+    public String getMavenHost() {
+        // with host networking, slave is reachable on loopback, bypassing docker bridge
+        return hostNetwork ? "127.0.0.1" : "dockerhost";
+    }
+
     public boolean tearDown() throws IOException, InterruptedException {
-        if (container != null) {
-            enable = false;
-            docker.kill(container);
+        return tearDown(null, TaskListener.NULL);
+    }
+
+    /**
+     * Stop containers, unless build succeeded and build container has to be kept alive in {@link ContainerPool} for
+     * next build of this job. Containers with service containers or a synchronized workspace are never parked.
+     * Containers are stopped even if retrieving workspace from a synchronized volume fails.
+     * @param build completed build, <code>null</code> if build environment failed to set up
+     */
+    public boolean tearDown(AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
+        enable = false;
+        boolean retrieved = true;
+        try {
+            if (usage != null) {
+                usage.stop();
+            }
+            if (sync != null && container != null) {
+                try {
+                    sync.pull(container);
+                } catch (IOException e) {
+                    listener.getLogger().println("Failed to retrieve workspace from docker volume: " + e.getMessage());
+                    LOGGER.log(Level.WARNING, "Failed to retrieve workspace from docker volume", e);
+                    retrieved = false;
+                }
+            }
+            boolean success = build != null && (build.getResult() == null || build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+            if (success && snapshot != null && container != null) {
+                try {
+                    dependencySnapshot.commit(docker, build.getParent(), container, getRunImage(), snapshot, listener);
+                } catch (IOException e) {
+                    listener.getLogger().println("Failed to create dependency snapshot: " + e.getMessage());
+                }
+            }
+            if (success && poolKey != null && container != null && sidecars.isEmpty() && sync == null) {
+                // parked container keeps a reference to docker key material, until evicted
+                // CPUs are released, so they can be allocated to other builds while container is idle
+                ContainerPool.park(poolKey, build.getBuiltOnStr(), container, docker, keepAliveTimeout);
+                listener.getLogger().println("Docker container " + container + " kept alive for next build");
+                container = null;
+                parked = true;
+            }
+        } finally {
+            try {
+                List<String> containers = new ArrayList<String>(sidecars);
+                if (container != null) {
+                    containers.add(container);
+                }
+                stop(containers);
+            } finally {
+                sidecars.clear();
+                if (resources != null) {
+                    resources.release();
+                    resources = null;
+                }
+            }
         }
-        return true;
+        try {
+            if (network != null) {
+                docker.removeNetwork(network);
+                network = null;
+            }
+        } finally {
+            release();
+        }
+        return retrieved;
 
     }
 
+    /**
+     * Release docker key material, unless build container has been parked.
+     */
+    /* package */ void release() throws IOException {
+        if (!parked) {
+            docker.close();
+        }
+    }
+
+    /**
+     * Stop containers concurrently.
+     */
+    /* package */ void stop(List<String> containers) throws IOException, InterruptedException {
+        List<Future<Void>> stopped = new ArrayList<Future<Void>>();
+        for (final String id : containers) {
+            stopped.add(DockerBuildWrapper.executors.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    docker.kill(id);
+                    return null;
+                }
+            }));
+        }
+
+        IOException failure = null;
+        for (Future<Void> f : stopped) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
     public List<Integer> getPorts() {
         return ports;
     }
@@ -102,6 +328,25 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
         return volumes;
     }
 
+    /**
+     * Mount a tmpfs at <code>path</code> inside container. Bind mounts nested inside this path are still visible, but
+     * a tmpfs can't replace a bind mounted directory, as this one is used to share files with the slave (for sample
+     * temporary files created to run shell build steps) : such a mount is ignored.
+     * @return <code>false</code> if path is already bind mounted
+     */
+    public boolean tmpfsMount(String path, String size) {
+        if (volumes.containsValue(path)) {
+            return false;
+        }
+        tmpfs.put(path, size);
+        return true;
+    }
+
+    public @Nonnull Map<String, String> getTmpfs() {
+        // tmpfs was introduced after 1.5, so is null when deserialized from an older build
+        return tmpfs != null ? tmpfs : Collections.<String, String>emptyMap();
+    }
+
 
     public @Nonnull Map<Integer, Integer> getPortsMap() {
         Map<Integer, Integer> map = new HashMap<Integer, Integer>();
@@ -119,4 +364,6 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
         }
         return map;
     }
+
+    private static final Logger LOGGER = Logger.getLogger(BuiltInContainer.class.getName());
 }
@@ -0,0 +1,262 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Build containers kept alive after a successful build, so next build of the same job on the same node can reuse it,
+ * with daemons (Gradle, sbt, ...) and caches still warm.
+ * <p>
+ * Pool doesn't survive a restart : containers it may hold are labelled with Jenkins instance and session, so the ones
+ * left from a previous session are removed once a build needs the pool on the same node.
+ */
+public class ContainerPool {
+
+    /** Evict parked containers when node available memory is lower than this percentage */
+    private static final int MIN_AVAILABLE_MEMORY_PERCENT = Integer.getInteger(ContainerPool.class.getName()+".minAvailableMemoryPercent", 10);
+
+    private static final String INSTANCE_LABEL = "com.cloudbees.jenkins.docker-build-env.instance";
+
+    private static final String SESSION_LABEL = "com.cloudbees.jenkins.docker-build-env.session";
+
+    /** identify containers started since Jenkins started */
+    private static final String SESSION = UUID.randomUUID().toString();
+
+    private static final Map<String, Parked> parked = new HashMap<String, Parked>();
+
+    /** nodes containers left from a previous session have been removed from */
+    private static final Set<String> reaped = new HashSet<String>();
+
+    /**
+     * Compute the key a container is parked with. A container can only be reused by a build of the same job, running
+     * on the same node, with same image, mounts, network and user : all of them are part of the key.
+     */
+    public static String key(Object... parts) {
+        StringBuilder s = new StringBuilder();
+        for (Object part : parts) {
+            s.append(part instanceof Map ? new TreeMap((Map) part) : part).append('|');
+        }
+        return Util.getDigestOf(s.toString());
+    }
+
+    /**
+     * @return labels to set on a build container which may be parked
+     */
+    public static Map<String, String> labels() {
+        Map<String, String> labels = new HashMap<String, String>();
+        labels.put(INSTANCE_LABEL, Jenkins.getInstance().getLegacyInstanceId());
+        labels.put(SESSION_LABEL, SESSION);
+        return labels;
+    }
+
+    /**
+     * Remove containers parked on node before Jenkins restarted, the first time node is used by a build since then.
+     */
+    public static void reap(Docker docker, String node) throws IOException, InterruptedException {
+        synchronized (reaped) {
+            if (!reaped.add(node)) return;
+        }
+        Map<String, String> labels = labels();
+        try {
+            List<String> orphans = docker.listContainers(Collections.singletonMap(INSTANCE_LABEL, labels.get(INSTANCE_LABEL)));
+            orphans.removeAll(docker.listContainers(labels));
+            for (String container : orphans) {
+                LOGGER.log(Level.INFO, "Removing Docker container {0} kept alive on {1} before Jenkins restarted", new Object[] {container, node});
+                docker.removeContainer(container);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to remove Docker containers kept alive on " + node + " before Jenkins restarted", e);
+            synchronized (reaped) {
+                reaped.remove(node);
+            }
+        }
+    }
+
+    /**
+     * Keep a build container alive for later reuse.
+     */
+    public static void park(String key, String node, String container, Docker docker, int timeout) {
+        park(key, new Parked(node, container, docker, docker.withListener(TaskListener.NULL), timeout));
+    }
+
+    /* package */ static void park(String key, Parked p) {
+        Parked previous;
+        synchronized (parked) {
+            previous = parked.put(key, p);
+        }
+        if (previous != null) {
+            previous.evict();
+        }
+    }
+
+    /**
+     * @return container parked with this key, <code>null</code> if none. Caller is responsible for the container.
+     */
+    public static Parked take(String key) {
+        synchronized (parked) {
+            return parked.remove(key);
+        }
+    }
+
+    public static class Parked {
+        private final String node;
+        private final String container;
+        private final Docker docker;
+        /** client used to stop container, as build which parked it has completed */
+        private final Docker client;
+        private final long timeout;
+        private final long since = System.currentTimeMillis();
+
+        /* package */ Parked(String node, String container, Docker docker, Docker client, int timeout) {
+            this.node = node;
+            this.container = container;
+            this.docker = docker;
+            this.client = client;
+            this.timeout = TimeUnit.MINUTES.toMillis(timeout);
+        }
+
+        public String getContainer() {
+            return container;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - since > timeout;
+        }
+
+        /**
+         * Stop container.
+         */
+        public void evict() {
+            try {
+                client.kill(container);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to stop parked container " + container, e);
+            } finally {
+                detach();
+            }
+        }
+
+        /**
+         * Release docker key material container was parked with, once container has been reattached to a build.
+         */
+        public void detach() {
+            try {
+                docker.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to release docker key material", e);
+            }
+        }
+    }
+
+    @Extension
+    public static class Eviction extends AsyncPeriodicWork {
+
+        public Eviction() {
+            super("Docker parked containers eviction");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            Map<String, List<Parked>> byNode = new HashMap<String, List<Parked>>();
+            List<Parked> evicted = takeExpired(byNode);
+
+            // under memory pressure, evict oldest parked container
+            for (List<Parked> l : byNode.values()) {
+                Parked oldest = oldest(l);
+                VirtualChannel channel = oldest.docker.getLauncher().getChannel();
+                try {
+                    if (channel != null && channel.call(new GetAvailableMemoryPercent()) < MIN_AVAILABLE_MEMORY_PERCENT) {
+                        synchronized (parked) {
+                            if (parked.values().remove(oldest)) evicted.add(oldest);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to check memory on node " + oldest.node, e);
+                }
+            }
+
+            for (Parked p : evicted) {
+                p.evict();
+            }
+        }
+    }
+
+    /**
+     * Remove expired containers from pool, and group the other ones by node.
+     * @return expired containers, caller is responsible to evict them
+     */
+    /* package */ static List<Parked> takeExpired(Map<String, List<Parked>> byNode) {
+        List<Parked> expired = new ArrayList<Parked>();
+        synchronized (parked) {
+            for (Iterator<Parked> it = parked.values().iterator(); it.hasNext(); ) {
+                Parked p = it.next();
+                if (p.isExpired()) {
+                    expired.add(p);
+                    it.remove();
+                } else {
+                    List<Parked> l = byNode.get(p.node);
+                    if (l == null) {
+                        l = new ArrayList<Parked>();
+                        byNode.put(p.node, l);
+                    }
+                    l.add(p);
+                }
+            }
+        }
+        return expired;
+    }
+
+    /* package */ static Parked oldest(List<Parked> l) {
+        Parked oldest = l.get(0);
+        for (Parked p : l) {
+            if (p.since < oldest.since) oldest = p;
+        }
+        return oldest;
+    }
+
+    private static class GetAvailableMemoryPercent extends MasterToSlaveCallable<Integer, IOException> {
+
+        public Integer call() throws IOException {
+            File meminfo = new File("/proc/meminfo");
+            if (!meminfo.exists()) return 100;
+            long total = 0, available = 0;
+            for (String line : FileUtils.readLines(meminfo)) {
+                if (line.startsWith("MemTotal:")) {
+                    total = Long.parseLong(line.substring(9).replace("kB", "").trim());
+                } else if (line.startsWith("MemAvailable:")) {
+                    available = Long.parseLong(line.substring(13).replace("kB", "").trim());
+                }
+            }
+            return total > 0 && available > 0 ? (int) (available * 100 / total) : 100;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerPool.class.getName());
+}
@@ -0,0 +1,77 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.model.TaskListener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limit concurrent heavy operations (pull, push, load, build, container start) sent to a docker daemon, so a wave of builds
+ * starting at once on a node doesn't make the daemon thrash.
+ */
+public class DaemonAdmission {
+
+    /**
+     * Push and load have their own slots, as they respectively upload layers and decompress a local tarball, so don't
+     * compete for the same resources as a pull.
+     */
+    public enum Operation {
+        PULL(3), PUSH(2), LOAD(2), BUILD(2), RUN(4);
+
+        private final int limit;
+
+        Operation(int limit) {
+            // i.e. -Dcom.cloudbees.jenkins.plugins.docker_build_env.DaemonAdmission.BUILD=4
+            this.limit = Integer.getInteger(DaemonAdmission.class.getName() + "." + name(), limit);
+        }
+    }
+
+    private static final Map<String, Semaphore> slots = new HashMap<String, Semaphore>();
+
+    private static Semaphore slots(String daemon, Operation operation) {
+        String key = daemon + "#" + operation;
+        synchronized (slots) {
+            Semaphore s = slots.get(key);
+            if (s == null) {
+                s = new Semaphore(operation.limit, true);
+                slots.put(key, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Wait for a slot to run <code>operation</code> against <code>daemon</code>. Caller has to
+     * {@link Permit#release()} slot once operation completed.
+     */
+    public static Permit acquire(String daemon, Operation operation, TaskListener listener, DockerReport report) throws InterruptedException {
+        Semaphore s = slots(daemon, operation);
+        // a timed tryAcquire honors fairness, so a build can't overtake the ones already waiting
+        if (!s.tryAcquire(0, TimeUnit.SECONDS)) {
+            long start = System.currentTimeMillis();
+            listener.getLogger().println("Waiting for docker " + operation.name().toLowerCase() + " slot on " + daemon
+                    + " (position " + (s.getQueueLength() + 1) + " in queue)");
+            s.acquire();
+            report.add(new DockerReport.Wait(operation.name().toLowerCase(), System.currentTimeMillis() - start));
+        }
+        return new Permit(s);
+    }
+
+    public static class Permit {
+        private final Semaphore semaphore;
+        private boolean released;
+
+        private Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        public synchronized void release() {
+            if (!released) {
+                semaphore.release();
+                released = true;
+            }
+        }
+    }
+}
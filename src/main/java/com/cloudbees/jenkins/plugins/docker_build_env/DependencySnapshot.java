@@ -0,0 +1,145 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Job;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.FileSet;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Snapshot of build container after a successful build, committed as an image tagged by a hash of the project
+ * dependency manifests (<code>pom.xml</code>, <code>package-lock.json</code>, ...). Next builds with the same
+ * manifests start from this image, with dependencies already downloaded.
+ */
+public class DependencySnapshot extends AbstractDescribableImpl<DependencySnapshot> {
+
+    private final String manifests;
+    private final int maxSnapshots;
+    private final int maxAge;
+
+    @DataBoundConstructor
+    public DependencySnapshot(String manifests, int maxSnapshots, int maxAge) {
+        this.manifests = manifests;
+        this.maxSnapshots = maxSnapshots > 0 ? maxSnapshots : 3;
+        this.maxAge = maxAge > 0 ? maxAge : 7;
+    }
+
+    /**
+     * @return comma separated Ant-style patterns for dependency manifests, relative to workspace
+     */
+    public String getManifests() {
+        return manifests;
+    }
+
+    public int getMaxSnapshots() {
+        return maxSnapshots;
+    }
+
+    /**
+     * @return maximum age of a snapshot, in days
+     */
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @return repository snapshots of this job are tagged in
+     */
+    public static String getRepository(Job job) {
+        return "jenkins-deps/" + normalize(job.getFullName());
+    }
+
+    /**
+     * Convert job full name to a valid docker repository path : each component has to match
+     * <code>[a-z0-9]+([._-][a-z0-9]+)*</code>, so separators can't lead, trail nor follow each other.
+     */
+    /* package */ static String normalize(String name) {
+        StringBuilder s = new StringBuilder();
+        for (String component : name.toLowerCase().split("/")) {
+            String c = component.replaceAll("[^a-z0-9._-]", "-")
+                    .replaceAll("[._-]{2,}", "-")
+                    .replaceAll("^[._-]|[._-]$", "");
+            if (s.length() > 0) s.append('/');
+            s.append(c.length() > 0 ? c : "job");
+        }
+        return s.toString();
+    }
+
+    /**
+     * Compute snapshot tag from the manifests in workspace and the image build container is created from.
+     * @return snapshot image, <code>null</code> if no manifest has been found in workspace
+     */
+    public String getSnapshot(Job job, FilePath workspace, String baseImageId) throws IOException, InterruptedException {
+        String hash = workspace.act(new HashManifests(manifests));
+        if (hash == null) return null;
+        return getRepository(job) + ":" + Util.getDigestOf(baseImageId + ":" + hash);
+    }
+
+    /**
+     * Commit build container as snapshot image, then remove snapshots in excess or too old. Build container has to be
+     * started without build environment, so it isn't recorded in snapshot configuration : it includes sensitive
+     * variables, and would be inherited by next builds.
+     */
+    public void commit(Docker docker, Job job, String container, String image, String snapshot, TaskListener listener) throws IOException, InterruptedException {
+        listener.getLogger().println("Commit Docker container " + container + " as dependency snapshot " + snapshot);
+        docker.commit(container, image, snapshot);
+
+        for (String removed : docker.pruneTags(getRepository(job), maxSnapshots, maxAge, Collections.singleton(snapshot))) {
+            listener.getLogger().println("Removed dependency snapshot " + removed);
+        }
+    }
+
+    /**
+     * Compute a hash of manifest files matching patterns, including their path.
+     * @return hash, <code>null</code> if no file matches
+     */
+    /* package */ static class HashManifests extends MasterToSlaveFileCallable<String> {
+        private final String includes;
+
+        /* package */ HashManifests(String includes) {
+            this.includes = includes;
+        }
+
+        public String invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            FileSet fs = Util.createFileSet(ws, includes);
+            DirectoryScanner ds = fs.getDirectoryScanner();
+            String[] files = ds.getIncludedFiles();
+            if (files.length == 0) return null;
+            Arrays.sort(files);
+
+            StringBuilder s = new StringBuilder();
+            for (String file : files) {
+                InputStream in = new FileInputStream(new File(ws, file));
+                try {
+                    s.append(file.replace('\\', '/')).append('=').append(Util.getDigestOf(in)).append('\n');
+                } finally {
+                    in.close();
+                }
+            }
+            return Util.getDigestOf(s.toString());
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<DependencySnapshot> {
+
+        @Override
+        public String getDisplayName() {
+            return "Dependency snapshot";
+        }
+    }
+}
@@ -5,6 +5,7 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.Computer;
+import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.util.ArgumentListBuilder;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
@@ -16,9 +17,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -26,6 +39,9 @@ import java.util.Set;
 public class Docker implements Closeable {
 
     private static boolean debug = Boolean.getBoolean(Docker.class.getName()+".debug");
+
+    /** Where PIDs of commands executed in container are recorded, not bind mounted from slave */
+    private static final String EXEC_PIDS = "/dev/shm/.jenkins-exec-";
     private final Launcher launcher;
     private final TaskListener listener;
     private final String dockerExecutable;
@@ -34,7 +50,10 @@ public class Docker implements Closeable {
     private final boolean verbose;
     private final boolean privileged;
     private final AbstractBuild build;
+    /** identify docker daemon for {@link DaemonAdmission} */
+    private final String daemon;
     private EnvVars envVars;
+    private final DockerReport report = new DockerReport();
 
     public Docker(DockerServerEndpoint dockerHost, String dockerInstallation, String credentialsId, AbstractBuild build, Launcher launcher, TaskListener listener, boolean verbose, boolean privileged) throws IOException, InterruptedException {
         this.dockerHost = dockerHost;
@@ -45,29 +64,98 @@ public class Docker implements Closeable {
         this.build = build;
         this.verbose = verbose | debug;
         this.privileged = privileged;
+        // display name isn't unique, nor stable as it can be localized
+        this.daemon = daemon(Computer.currentComputer().getName(), dockerHost.getUri());
+    }
+
+    /**
+     * Identify docker daemon. Local socket and loopback address designate a distinct daemon on each node, while a
+     * remote one is shared by all nodes using the same URI.
+     */
+    /* package */ static String daemon(String node, String uri) {
+        if (node.length() == 0) node = "master";
+        if (uri == null) return node;
+        return isLocal(uri) ? node + "@" + uri : uri;
+    }
+
+    private Docker(Docker docker, Launcher launcher, TaskListener listener) {
+        this.dockerHost = docker.dockerHost;
+        this.dockerExecutable = docker.dockerExecutable;
+        this.registryEndpoint = docker.registryEndpoint;
+        this.launcher = launcher;
+        this.listener = listener;
+        this.build = docker.build;
+        this.verbose = docker.verbose;
+        this.privileged = docker.privileged;
+        this.daemon = docker.daemon;
+        this.dockerEnv = docker.dockerEnv;
+        this.envVars = docker.envVars;
+    }
+
+    /**
+     * Get a docker client to manage containers once build has completed, so commands aren't logged to build log.
+     * It shares key material with this client, so has to be used before this one is closed, and is never closed itself.
+     */
+    /* package */ Docker withListener(TaskListener listener) {
+        Node node = build.getBuiltOn();
+        return new Docker(this, node != null ? node.createLauncher(listener) : launcher, listener);
     }
 
 
     private KeyMaterial dockerEnv;
 
-    public void setupCredentials(AbstractBuild build) throws IOException, InterruptedException {
-        this.dockerEnv = dockerHost.newKeyMaterialFactory(build)
-                .plus(   registryEndpoint.newKeyMaterialFactory(build))
-                .materialize();
+    /**
+     * @return report on image preparation collected from docker commands output
+     */
+    public DockerReport getReport() {
+        return report;
     }
 
+    /**
+     * @return <code>true</code> if docker daemon runs on the node hosting the build, so container processes and
+     * cgroups can be inspected from there
+     */
+    public boolean isLocal() {
+        return isLocal(dockerHost.getUri());
+    }
+
+    /* package */ static boolean isLocal(String uri) {
+        if (uri == null || uri.startsWith("unix://")) return true;
+        String host;
+        try {
+            host = new URI(uri).getHost();
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        return host != null && (host.equals("localhost") || host.startsWith("127.") || host.equals("[::1]"));
+    }
 
+    public synchronized void setupCredentials(AbstractBuild build) throws IOException, InterruptedException {
+        if (dockerEnv != null) return; // already set up to prepare image before checkout
+        this.dockerEnv = KeyMaterialCache.acquire(build.getBuiltOnStr(), launcher.getChannel(), build.getParent(),
+                dockerHost, registryEndpoint);
+        // compute from executor thread, as build environment depends on current computer
+        getEnvVars();
+    }
+
+
+    /**
+     * Release key material used to access docker daemon and registry.
+     */
     @Override
-    public void close() throws IOException {
-        dockerEnv.close();
+    public synchronized void close() throws IOException {
+        if (dockerEnv != null) {
+            dockerEnv.close();
+            dockerEnv = null;
+        }
     }
 
     public boolean hasImage(String image) throws IOException, InterruptedException {
         ArgumentListBuilder args = dockerCommand()
             .add("inspect", image);
-        
-        OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
-        OutputStream err = verbose ? listener.getLogger() : new ByteArrayOutputStream();
+
+        OutputStream out = verbose ? listener.getLogger() : new TailOutputStream();
+        OutputStream err = verbose ? listener.getLogger() : out;
 
         int status = launcher.launch()
                 .envs(getEnvVars())
@@ -76,40 +164,218 @@ public class Docker implements Closeable {
         return status == 0;
     }
 
-    private EnvVars getEnvVars() throws IOException, InterruptedException {
+    /**
+     * @return ID of a local image, <code>null</code> if image is not available
+     */
+    public String getImageId(String image) throws IOException, InterruptedException {
+        return inspect(image, "{{.Id}}");
+    }
+
+    /**
+     * Resolve the digest identifying image content, so a build can be reproduced even if image is retagged.
+     * @return repository digest (<code>repository@sha256:...</code>) for images pulled from a registry, image ID for
+     * locally built ones.
+     */
+    public String getImageDigest(String image) throws IOException, InterruptedException {
+        String digests = inspect(image, "{{range .RepoDigests}}{{.}} {{end}}");
+        String digest = digests != null ? selectDigest(image, digests.split(" ")) : null;
+        return digest != null ? digest : getImageId(image);
+    }
+
+    /**
+     * An image pulled from several repositories has a digest for each of them.
+     * @return repository digest matching <code>image</code> repository, <code>null</code> if none does
+     */
+    /* package */ static String selectDigest(String image, String[] digests) {
+        String repository = normalizeRepository(image);
+        for (String digest : digests) {
+            int at = digest.indexOf('@');
+            if (at > 0 && normalizeRepository(digest.substring(0, at)).equals(repository)) {
+                return digest;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return image repository, without tag nor digest, and without the implicit Docker Hub registry and namespace
+     */
+    private static String normalizeRepository(String image) {
+        int at = image.indexOf('@');
+        if (at >= 0) image = image.substring(0, at);
+        int colon = image.lastIndexOf(':');
+        if (colon > image.lastIndexOf('/')) image = image.substring(0, colon);
+        if (image.startsWith("docker.io/")) image = image.substring("docker.io/".length());
+        if (image.startsWith("library/")) image = image.substring("library/".length());
+        return image;
+    }
+
+    private String inspect(String id, String format) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("inspect", "--format", format, id);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream err = verbose ? listener.getLogger() : new TailOutputStream();
+
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(err).quiet(!verbose).join();
+        if (status != 0) {
+            return null;
+        }
+        return out.toString("UTF-8").trim();
+    }
+
+    /* package */ synchronized EnvVars getEnvVars() throws IOException, InterruptedException {
         if (envVars == null) {
             envVars = new EnvVars(build.getEnvironment(listener)).overrideAll(dockerEnv.env());
         }
         return envVars;
     }
 
-    public boolean pullImage(String image) throws IOException, InterruptedException {
+    public void pullImage(String image) throws IOException, InterruptedException {
         ArgumentListBuilder args = dockerCommand()
             .add("pull", image);
-        
-        OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
-        OutputStream err = verbose ? listener.getLogger() : new ByteArrayOutputStream();
+
+        TailOutputStream tail = new TailOutputStream();
+        DockerPullOutputParser out = new DockerPullOutputParser(verbose ? listener.getLogger() : tail);
+        OutputStream err = verbose ? listener.getLogger() : tail;
+        DaemonAdmission.Permit permit = DaemonAdmission.acquire(daemon, DaemonAdmission.Operation.PULL, listener, report);
+        long start = System.currentTimeMillis();
+        int status;
+        try {
+            status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(out).stderr(err).join();
+        } finally {
+            permit.release();
+        }
+        List<DockerReport.Layer> layers = out.finish();
+        if (status != 0) {
+            throw new IOException(failure("Failed to pull Docker image "+image, tail));
+        }
+
+        long duration = System.currentTimeMillis() - start;
+        String size = inspect(image, "{{.Size}}");
+        // size is missing or "<no value>" with some daemon versions
+        report.add(new DockerReport.Pull(image, duration, size != null && size.matches("\\d+") ? Long.parseLong(size) : 0, layers));
+    }
+
+    public void tagImage(String image, String tag) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("tag", image, tag);
+
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream out = verbose ? listener.getLogger() : tail;
         int status = launcher.launch()
                 .envs(getEnvVars())
                 .cmds(args)
-                .stdout(out).stderr(err).join();
-        return status == 0;
+                .stdout(out).stderr(out).quiet(!verbose).join();
+        if (status != 0) {
+            throw new IOException(failure("Failed to tag Docker image "+image, tail));
+        }
+    }
+
+    public void pushImage(String image) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("push", image);
+
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream out = verbose ? listener.getLogger() : tail;
+        DaemonAdmission.Permit permit = DaemonAdmission.acquire(daemon, DaemonAdmission.Operation.PUSH, listener, report);
+        int status;
+        try {
+            status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(out).stderr(out).quiet(!verbose).join();
+        } finally {
+            permit.release();
+        }
+        if (status != 0) {
+            throw new IOException(failure("Failed to push Docker image "+image, tail));
+        }
     }
 
+    /**
+     * Load an image from a tarball created by <code>docker save</code>, possibly compressed. Docker client streams
+     * tarball from slave filesystem to the daemon, so it isn't copied nor decompressed first.
+     * @return image reference, as reported by docker
+     */
+    public String loadImage(FilePath tarball) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("load", "--input", tarball.getRemote());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream err = verbose ? listener.getLogger() : tail;
+        DaemonAdmission.Permit permit = DaemonAdmission.acquire(daemon, DaemonAdmission.Operation.LOAD, listener, report);
+        long start = System.currentTimeMillis();
+        int status;
+        try {
+            status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(out).stderr(err).quiet(!verbose).join();
+        } finally {
+            permit.release();
+        }
+        String output = out.toString("UTF-8");
+        if (verbose) {
+            listener.getLogger().print(output);
+        }
+        if (status != 0) {
+            tail.write(out.toByteArray());
+            throw new IOException(failure("Failed to load Docker image from "+tarball.getRemote(), tail));
+        }
+
+        // "Loaded image: repository:tag" or "Loaded image ID: sha256:..." for untagged images
+        String image = null;
+        for (String line : output.split("\n")) {
+            int i = line.indexOf("Loaded image");
+            if (i >= 0) {
+                image = line.substring(line.indexOf(':', i) + 1).trim();
+            }
+        }
+        if (image == null) {
+            throw new IOException("Tarball "+tarball.getRemote()+" doesn't contain any Docker image");
+        }
+        report.add(new DockerReport.Load(image, tarball.getRemote(), System.currentTimeMillis() - start, tarball.length()));
+        return image;
+    }
 
     public void buildImage(FilePath workspace, String dockerfile, String tag) throws IOException, InterruptedException {
+        buildImage(workspace, dockerfile, tag, Collections.<String>emptyList());
+    }
+
+    /**
+     * @param cacheFrom images to be used as layer cache sources, typically images built by previous builds
+     */
+    public void buildImage(FilePath workspace, String dockerfile, String tag, Collection<String> cacheFrom) throws IOException, InterruptedException {
 
         ArgumentListBuilder args = dockerCommand()
             .add("build", "--tag", tag)
-            .add("--file", dockerfile)
-            .add(workspace.getRemote());
+            .add("--file", dockerfile);
+        for (String image : cacheFrom) {
+            args.add("--cache-from", image);
+        }
+        args.add(workspace.getRemote());
 
-        OutputStream out = listener.getLogger();
+        DockerBuildOutputParser out = new DockerBuildOutputParser(listener.getLogger(), report);
         OutputStream err = listener.getLogger();
-        int status = launcher.launch()
-                .envs(getEnvVars())
-                .cmds(args)
-                .stdout(out).stderr(err).join();
+        DaemonAdmission.Permit permit = DaemonAdmission.acquire(daemon, DaemonAdmission.Operation.BUILD, listener, report);
+        int status;
+        try {
+            status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(out).stderr(err).join();
+        } finally {
+            permit.release();
+        }
+        out.finish();
         if (status != 0) {
             throw new RuntimeException("Failed to build docker image from project Dockerfile");
         }
@@ -121,14 +387,15 @@ public class Docker implements Closeable {
 
 
         listener.getLogger().println("Stopping Docker container after build completion");
-        OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
-        OutputStream err = verbose ? listener.getLogger() : new ByteArrayOutputStream();
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream out = verbose ? listener.getLogger() : tail;
+        OutputStream err = verbose ? listener.getLogger() : tail;
         int status = launcher.launch()
                 .envs(getEnvVars())
                 .cmds(args)
                 .stdout(out).stderr(err).quiet(!verbose).join();
         if (status != 0)
-            throw new RuntimeException("Failed to stop docker container "+container);
+            throw new RuntimeException(failure("Failed to stop docker container "+container, tail));
 
         args = new ArgumentListBuilder()
             .add(dockerExecutable)
@@ -138,12 +405,12 @@ public class Docker implements Closeable {
                 .cmds(args)
                 .stdout(out).stderr(err).quiet(!verbose).join();
         if (status != 0)
-            throw new RuntimeException("Failed to remove docker container "+container);
+            throw new RuntimeException(failure("Failed to remove docker container "+container, tail));
     }
 
-    public String runDetached(String image, String workdir, Map<String, String> volumes, Map<Integer, Integer> ports, Map<String, String> links, EnvVars environment, Set sensitiveBuildVariables, String... command) throws IOException, InterruptedException {
+    public String runDetached(String image, String workdir, Map<String, String> volumes, Map<String, String> tmpfs, Map<Integer, Integer> ports, Map<String, String> links, String network, NodeResourceAllocator.Allocation resources, Map<String, String> labels, EnvVars environment, Set sensitiveBuildVariables, String... command) throws IOException, InterruptedException {
 
-        String docker0 = getDocker0Ip(launcher, image);
+        String docker0 = "host".equals(network) ? null : getDocker0Ip(launcher, image);
 
 
         ArgumentListBuilder args = dockerCommand()
@@ -155,13 +422,38 @@ public class Docker implements Closeable {
         for (Map.Entry<String, String> volume : volumes.entrySet()) {
             args.add("--volume", volume.getKey() + ":" + volume.getValue() + ":rw" );
         }
+        for (Map.Entry<String, String> mount : tmpfs.entrySet()) {
+            // docker defaults to noexec, which would prevent running binaries produced by the build
+            String options = "rw,exec,mode=1777";
+            if (mount.getValue() != null) {
+                options += ",size=" + mount.getValue();
+            }
+            args.add("--tmpfs", mount.getKey() + ":" + options);
+        }
         for (Map.Entry<Integer, Integer> port : ports.entrySet()) {
             args.add("--publish", port.getKey() + ":" + port.getValue());
         }
         for (Map.Entry<String, String> link : links.entrySet()) {
             args.add("--link", link.getKey() + ":" + link.getValue());
         }
-        args.add("--add-host", "dockerhost:"+docker0);
+        if (network != null) {
+            args.add("--net", network);
+        }
+        if (resources != null) {
+            if (resources.getCpuset() != null) {
+                args.add("--cpuset-cpus", resources.getCpuset());
+            }
+            if (resources.getMemory() > 0) {
+                args.add("--memory", String.valueOf(resources.getMemory()));
+            }
+        }
+        if (!"host".equals(network)) {
+            // host network mode shares host's /etc/hosts
+            args.add("--add-host", "dockerhost:"+docker0);
+        }
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            args.add("--label", label.getKey() + "=" + label.getValue());
+        }
 
         for (Map.Entry<String, String> e : environment.entrySet()) {
             if ("HOSTNAME".equals(e.getKey())) {
@@ -177,10 +469,16 @@ public class Docker implements Closeable {
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-        int status = launcher.launch()
-                .envs(getEnvVars())
-                .cmds(args)
-                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        DaemonAdmission.Permit permit = DaemonAdmission.acquire(daemon, DaemonAdmission.Operation.RUN, listener, report);
+        int status;
+        try {
+            status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        } finally {
+            permit.release();
+        }
 
         if (status != 0) {
             throw new RuntimeException("Failed to run docker image");
@@ -189,6 +487,350 @@ public class Docker implements Closeable {
         return container;
     }
 
+    /**
+     * Create a container, without starting it, so files can be copied into it.
+     * @return container ID
+     */
+    public String createContainer(String image) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("create", image, "sh"); // command is required by docker create, but never ran
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TailOutputStream tail = new TailOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(verbose ? listener.getLogger() : tail).quiet(!verbose).join();
+        if (status != 0) {
+            throw new IOException(failure("Failed to create container from docker image "+image, tail));
+        }
+        return out.toString("UTF-8").trim();
+    }
+
+    /**
+     * Copy a directory from slave into container, at the same path. Directory is streamed as a tar archive, so
+     * parent directories are created as needed.
+     */
+    public void copyInto(String container, String path) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+            .add("sh", "-c", "p=$1; shift; tar -c -f - -C / \"$p\" | \"$@\"", "sh", path.substring(1))
+            .add(dockerCommand().add("cp", "-", container + ":/").toCommandArray());
+
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream out = verbose ? listener.getLogger() : tail;
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(out).quiet(!verbose).join();
+        if (status != 0) {
+            throw new IOException(failure("Failed to copy "+path+" into docker container "+container, tail));
+        }
+    }
+
+    /**
+     * Remove a container, running or not.
+     */
+    public void removeContainer(String container) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("rm", "--force", container);
+
+        OutputStream out = verbose ? listener.getLogger() : new TailOutputStream();
+        launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(out).quiet(!verbose).join();
+    }
+
+    /**
+     * @return IDs of containers, running or not, with all these labels
+     */
+    public List<String> listContainers(Map<String, String> labels) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("ps", "--all", "--quiet", "--no-trunc");
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            args.add("--filter", "label=" + label.getKey() + "=" + label.getValue());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream err = verbose ? listener.getLogger() : tail;
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(err).quiet(!verbose).join();
+        if (status != 0) {
+            throw new IOException(failure("Failed to list docker containers", tail));
+        }
+        List<String> containers = new ArrayList<String>();
+        for (String id : out.toString("UTF-8").split("\\s+")) {
+            if (id.length() > 0) containers.add(id);
+        }
+        return containers;
+    }
+
+    /**
+     * Run a service container, attached to build network with a network alias so build can access it by name.
+     */
+    public String runSidecar(String image, String network, String alias, String... command) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("run", "--detach")
+            .add("--net", network)
+            .add("--net-alias", alias)
+            .add(image).add(command);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DaemonAdmission.Permit permit = DaemonAdmission.acquire(daemon, DaemonAdmission.Operation.RUN, listener, report);
+        int status;
+        try {
+            status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        } finally {
+            permit.release();
+        }
+
+        if (status != 0) {
+            throw new IOException("Failed to run docker image "+image);
+        }
+        return out.toString("UTF-8").trim();
+    }
+
+    /**
+     * @return IP address of container, <code>null</code> if container has no network
+     */
+    public String getContainerIp(String container) throws IOException, InterruptedException {
+        String ips = inspect(container, "{{range .NetworkSettings.Networks}}{{.IPAddress}} {{end}}");
+        if (ips == null || ips.length() == 0) return null;
+        return ips.split(" ")[0];
+    }
+
+    /**
+     * @return PID of container main process on docker host, <code>0</code> if container isn't running
+     */
+    public int getContainerPid(String container) throws IOException, InterruptedException {
+        String pid = inspect(container, "{{.State.Pid}}");
+        return pid != null ? Integer.parseInt(pid) : 0;
+    }
+
+    /**
+     * Commit container filesystem changes as a new image. Command and working directory set when container was ran
+     * are reset to the ones of the image container has been created from.
+     */
+    public void commit(String container, String image, String tag) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("commit");
+        String cmd = inspect(image, "{{json .Config.Cmd}}");
+        if (cmd != null && cmd.startsWith("[")) {
+            args.add("--change", "CMD " + cmd);
+        }
+        String workdir = inspect(image, "{{.Config.WorkingDir}}");
+        args.add("--change", "WORKDIR " + (workdir == null || workdir.length() == 0 ? "/" : workdir));
+        args.add(container, tag);
+
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream out = verbose ? listener.getLogger() : tail;
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(out).quiet(!verbose).join();
+        if (status != 0) {
+            throw new IOException(failure("Failed to commit docker container "+container, tail));
+        }
+    }
+
+    /**
+     * @return tags of local images for a repository
+     */
+    public List<String> listTags(String repository) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("images", "--format", "{{.Tag}}", repository);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream err = verbose ? listener.getLogger() : new TailOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(err).quiet(!verbose).join();
+        List<String> tags = new ArrayList<String>();
+        if (status != 0) {
+            return tags;
+        }
+        for (String tag : out.toString("UTF-8").split("\\s+")) {
+            if (tag.length() > 0 && !"<none>".equals(tag)) tags.add(tag);
+        }
+        return tags;
+    }
+
+    /**
+     * @return image creation date, as reported by docker (RFC 3339, UTC), <code>null</code> if image is not available
+     */
+    public String getImageCreated(String image) throws IOException, InterruptedException {
+        return inspect(image, "{{.Created}}");
+    }
+
+    /**
+     * @return ID of the image <code>image</code> has been committed on top of, empty for pulled images or
+     * <code>null</code> if image is not available
+     */
+    public String getImageParent(String image) throws IOException, InterruptedException {
+        return inspect(image, "{{.Parent}}");
+    }
+
+    /**
+     * Remove an image tag, and image itself if not used by other tags or containers.
+     * @return <code>true</code> if image has been removed
+     */
+    public boolean removeImage(String image) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("rmi", image);
+
+        OutputStream out = verbose ? listener.getLogger() : new TailOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(out).quiet(!verbose).join();
+        return status == 0;
+    }
+
+    /**
+     * Remove tags of a repository in excess of <code>max</code>, most recent ones being kept, or created more than
+     * <code>maxAge</code> days ago. Images still used by a container can't be removed, so are kept.
+     * @param keep images (<code>repository:tag</code>) to keep whatever their age
+     * @return removed images
+     */
+    public List<String> pruneTags(String repository, int max, int maxAge, Collection<String> keep) throws IOException, InterruptedException {
+        Map<String, Long> created = new HashMap<String, Long>();
+        SimpleDateFormat rfc3339 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        rfc3339.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (String tag : listTags(repository)) {
+            String date = getImageCreated(repository + ":" + tag);
+            if (date == null) continue;
+            try {
+                created.put(repository + ":" + tag, rfc3339.parse(date).getTime());
+            } catch (ParseException e) {
+                created.put(repository + ":" + tag, 0L);
+            }
+        }
+
+        List<String> removed = new ArrayList<String>();
+        for (String image : getPrunable(created, max, maxAge, keep, System.currentTimeMillis())) {
+            if (removeImage(image)) {
+                removed.add(image);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @param created creation timestamp of images
+     * @return images in excess of <code>max</code>, most recent ones being kept, or created more than
+     * <code>maxAge</code> days before <code>now</code>
+     */
+    /* package */ static List<String> getPrunable(final Map<String, Long> created, int max, int maxAge, Collection<String> keep, long now) {
+        List<String> images = new ArrayList<String>(created.keySet());
+        Collections.sort(images, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return created.get(b).compareTo(created.get(a));
+            }
+        });
+        long oldest = now - TimeUnit.DAYS.toMillis(maxAge);
+        List<String> prunable = new ArrayList<String>();
+        for (int i = 0; i < images.size(); i++) {
+            String image = images.get(i);
+            if (keep.contains(image)) continue;
+            if (i >= max || created.get(image) < oldest) {
+                prunable.add(image);
+            }
+        }
+        return prunable;
+    }
+
+    /**
+     * @return <code>true</code> if container exists and is still running
+     */
+    public boolean isRunning(String container) throws IOException, InterruptedException {
+        return "true".equals(inspect(container, "{{.State.Running}}"));
+    }
+
+    /**
+     * Execute a shell command inside container, without output.
+     * @return <code>true</code> if command succeeded
+     */
+    public boolean execQuietly(String container, String command) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("exec", container)
+            .add("sh", "-c", command);
+
+        OutputStream out = verbose ? listener.getLogger() : new TailOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(out).quiet(!verbose).join();
+        return status == 0;
+    }
+
+    /**
+     * Create a named data volume if it doesn't exist yet.
+     * @return <code>true</code> if volume has been created
+     */
+    public boolean createVolume(String volume) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("volume", "inspect", volume);
+
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream out = verbose ? listener.getLogger() : tail;
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(out).quiet(!verbose).join();
+        if (status == 0) {
+            return false;
+        }
+
+        args = dockerCommand()
+            .add("volume", "create", "--name", volume);
+        status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(out).quiet(!verbose).join();
+        if (status != 0)
+            throw new IOException(failure("Failed to create docker volume "+volume, tail));
+        return true;
+    }
+
+    public void createNetwork(String network) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("network", "create", network);
+
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream out = verbose ? listener.getLogger() : tail;
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(out).quiet(!verbose).join();
+        if (status != 0)
+            throw new IOException(failure("Failed to create docker network "+network, tail));
+    }
+
+    public void removeNetwork(String network) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("network", "rm", network);
+
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream out = verbose ? listener.getLogger() : tail;
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(out).quiet(!verbose).join();
+        if (status != 0)
+            throw new IOException(failure("Failed to remove docker network "+network, tail));
+    }
+
+    /* package */ Launcher getLauncher() {
+        return launcher;
+    }
+
     private String getDocker0Ip(Launcher launcher, String image) throws IOException, InterruptedException {
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -232,13 +874,64 @@ public class Docker implements Closeable {
     }
 
 
-    public void executeIn(String container, String userId, Launcher.ProcStarter starter) throws IOException, InterruptedException {
+    public String executeIn(String container, String userId, Launcher.ProcStarter starter) throws IOException, InterruptedException {
+        return executeIn(container, userId, null, Collections.emptySet(), starter);
+    }
+
+    /**
+     * Pin a running container to <code>cpuset</code>, for sample when reused with a new allocation. Requires docker
+     * 1.10+.
+     */
+    public void updateCpuset(String container, String cpuset) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("update", "--cpuset-cpus", cpuset, container);
+
+        TailOutputStream tail = new TailOutputStream();
+        OutputStream out = verbose ? listener.getLogger() : tail;
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(out).quiet(!verbose).join();
+        if (status != 0) {
+            throw new IOException(failure("Failed to update Docker container "+container, tail));
+        }
+    }
+
+    /**
+     * Execute command inside container, with an environment overriding the one container has been started with. This
+     * is used to reattach a container kept alive from a previous build, and requires docker 1.13+.
+     * <p>
+     * Command is wrapped by a shell recording its PID, so it can be {@link #terminate terminated} inside container if
+     * build is aborted : killing <code>docker exec</code> client doesn't stop processes it started.
+     * @return ID identifying this command inside container
+     */
+    public String executeIn(String container, String userId, EnvVars environment, Set sensitiveBuildVariables, Launcher.ProcStarter starter) throws IOException, InterruptedException {
         List<String> originalCmds = starter.cmds();
 
         ArgumentListBuilder args = dockerCommand()
             .add("exec", "--tty")
-            .add("--user", userId)
-            .add(container);
+            .add("--user", userId);
+
+        if (environment != null) {
+            for (Map.Entry<String, String> e : environment.entrySet()) {
+                if ("HOSTNAME".equals(e.getKey())) {
+                    continue;
+                }
+                args.add("--env");
+                if (sensitiveBuildVariables.contains(e.getKey()))
+                    args.addMasked(e.getKey()+"="+e.getValue());
+                else
+                    args.add(e.getKey()+"="+e.getValue());
+            }
+        }
+        args.add(container);
+
+        // --tty makes wrapper shell a session and process group leader, so the whole process tree can be signaled.
+        // Shell doesn't exec command, so it can remove PID file once command completes. Failing to record PID must not
+        // prevent command from running.
+        String execId = UUID.randomUUID().toString();
+        String pidFile = EXEC_PIDS + execId;
+        args.add("sh", "-c", "echo $$ 2>/dev/null > " + pidFile + "; \"$@\"; s=$?; rm -f " + pidFile + "; exit $s", "sh");
 
         boolean[] originalMask = starter.masks();
         for (int i = 0; i < originalCmds.size(); i++) {
@@ -248,9 +941,56 @@ public class Docker implements Closeable {
 
         starter.cmds(args);
         starter.envs(getEnvVars());
+        return execId;
+    }
+
+    /**
+     * Script terminating process group recorded in PID file, with exec ID and grace period as arguments. Process name
+     * in <code>/proc/PID/stat</code> can contain spaces and parentheses, so fields are split after its last
+     * <code>)</code>, making process group the third one.
+     */
+    /* package */ static final String TERMINATE = "f=" + EXEC_PIDS + "$1; grace=$2; [ -f $f ] || exit 0; pg=$(cat $f); rm -f $f\n"
+            + "for s in /proc/[0-9]*/stat; do st=$(cat $s 2>/dev/null) || continue; set -- ${st##*\\) };"
+            + " [ \"$3\" = \"$pg\" ] && echo ${st%% *}; done\n"
+            + "kill -TERM -$pg 2>/dev/null || exit 0\n"
+            + "i=0; while [ $i -lt $grace ] && kill -0 -$pg 2>/dev/null; do sleep 1; i=$((i+1)); done\n"
+            + "kill -KILL -$pg 2>/dev/null; exit 0";
+
+    /**
+     * Terminate process group started by {@link #executeIn} : send <code>SIGTERM</code>, then <code>SIGKILL</code> if
+     * still running after grace period.
+     * @return PIDs (inside container) of the terminated processes
+     */
+    public List<String> terminate(String container, String execId, int grace) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("exec", "--user", "0", container)
+            .add("sh", "-c", TERMINATE, "sh", execId, String.valueOf(grace));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TailOutputStream tail = new TailOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(tail).quiet(!verbose).join();
+        if (status != 0) {
+            throw new IOException(failure("Failed to terminate processes in docker container "+container, tail));
+        }
+        List<String> pids = new ArrayList<String>();
+        for (String pid : out.toString("UTF-8").split("\\s+")) {
+            if (pid.length() > 0) pids.add(pid);
+        }
+        return pids;
+    }
+
+    /**
+     * Build failure message with the captured command output, which is not logged in non-verbose mode.
+     */
+    private String failure(String message, TailOutputStream tail) {
+        String output = tail.toString().trim();
+        return output.length() > 0 ? message + ":\n" + output : message;
     }
 
-    private ArgumentListBuilder dockerCommand() {
+    /* package */ ArgumentListBuilder dockerCommand() {
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add(dockerExecutable);
         if (dockerHost.getUri() != null) {
@@ -0,0 +1,63 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parse <code>docker build</code> output, while forwarding it to actual output stream, to record duration and cache
+ * usage of each Dockerfile instruction.
+ */
+public class DockerBuildOutputParser extends LineTransformationOutputStream {
+
+    // "Step 3 : RUN make" (docker < 1.13) or "Step 3/7 : RUN make"
+    private static final Pattern STEP = Pattern.compile("^Step \\d+(/\\d+)? : (.*)$");
+
+    private final OutputStream out;
+    private final DockerReport report;
+
+    private String instruction;
+    private long start;
+    private boolean cached;
+
+    public DockerBuildOutputParser(OutputStream out, DockerReport report) {
+        this.out = out;
+        this.report = report;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        out.write(b, 0, len);
+
+        String line = trimEOL(new String(b, 0, len, "UTF-8"));
+        Matcher m = STEP.matcher(line);
+        if (m.matches()) {
+            completeStep();
+            instruction = m.group(2);
+            start = System.currentTimeMillis();
+            cached = false;
+        } else if (line.contains("---> Using cache")) {
+            cached = true;
+        } else if (line.startsWith("Successfully built ")) {
+            completeStep();
+        }
+    }
+
+    /**
+     * Record last instruction once <code>docker build</code> has completed.
+     */
+    public void finish() throws IOException {
+        forceEol();
+        completeStep();
+    }
+
+    private void completeStep() {
+        if (instruction != null) {
+            report.add(new DockerReport.BuildStep(instruction, System.currentTimeMillis() - start, cached));
+            instruction = null;
+        }
+    }
+}
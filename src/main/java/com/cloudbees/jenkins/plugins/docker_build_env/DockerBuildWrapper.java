@@ -13,14 +13,18 @@ import hudson.model.listeners.RunListener;
 import hudson.remoting.Callable;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 import jenkins.authentication.tokens.api.AuthenticationTokens;
 import jenkins.model.Jenkins;
 import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.ContextResettingExecutorService;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.io.ByteArrayOutputStream;
@@ -31,6 +35,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Decorate Launcher so that every command executed by a build step is actually ran inside docker container.
@@ -56,6 +68,25 @@ public class DockerBuildWrapper extends BuildWrapper {
 
     private String command;
 
+    private boolean limitResources;
+
+    private boolean remoteDaemon;
+
+    private boolean hostNetwork;
+
+    private boolean keepAlive;
+
+    private boolean bakeTools;
+
+    /** Idle time (in minutes) before a container kept alive is stopped */
+    private int keepAliveTimeout = 30;
+
+    private DependencySnapshot dependencySnapshot;
+
+    private List<TmpfsMount> tmpfs = Collections.emptyList();
+
+    private List<SidecarContainer> sidecars = Collections.emptyList();
+
     @DataBoundConstructor
     public DockerBuildWrapper(DockerImageSelector selector, String dockerInstallation, DockerServerEndpoint dockerHost, String dockerRegistryCredentials, boolean verbose, boolean privileged,
                               List<Volume> volumes, String group, String command) {
@@ -106,16 +137,113 @@ public class DockerBuildWrapper extends BuildWrapper {
         return command;
     }
 
+    public boolean isLimitResources() {
+        return limitResources;
+    }
+
+    public List<TmpfsMount> getTmpfs() {
+        return tmpfs;
+    }
+
+    @DataBoundSetter
+    public void setTmpfs(List<TmpfsMount> tmpfs) {
+        this.tmpfs = tmpfs != null ? tmpfs : Collections.<TmpfsMount>emptyList();
+    }
+
+    public List<SidecarContainer> getSidecars() {
+        return sidecars;
+    }
+
+    @DataBoundSetter
+    public void setSidecars(List<SidecarContainer> sidecars) {
+        this.sidecars = sidecars != null ? sidecars : Collections.<SidecarContainer>emptyList();
+    }
+
+    public boolean isRemoteDaemon() {
+        return remoteDaemon;
+    }
+
+    @DataBoundSetter
+    public void setRemoteDaemon(boolean remoteDaemon) {
+        this.remoteDaemon = remoteDaemon;
+    }
+
+    public boolean isHostNetwork() {
+        return hostNetwork;
+    }
+
+    @DataBoundSetter
+    public void setHostNetwork(boolean hostNetwork) {
+        this.hostNetwork = hostNetwork;
+    }
+
+    public DependencySnapshot getDependencySnapshot() {
+        return dependencySnapshot;
+    }
+
+    @DataBoundSetter
+    public void setDependencySnapshot(DependencySnapshot dependencySnapshot) {
+        this.dependencySnapshot = dependencySnapshot;
+    }
+
+    public boolean isBakeTools() {
+        return bakeTools;
+    }
+
+    @DataBoundSetter
+    public void setBakeTools(boolean bakeTools) {
+        this.bakeTools = bakeTools;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    @DataBoundSetter
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    @DataBoundSetter
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    @DataBoundSetter
+    public void setLimitResources(boolean limitResources) {
+        this.limitResources = limitResources;
+    }
+
     @Override
     public Launcher decorateLauncher(final AbstractBuild build, final Launcher launcher, final BuildListener listener) throws IOException, InterruptedException, Run.RunnerAbortedException {
         final Docker docker = new Docker(dockerHost, dockerInstallation, dockerRegistryCredentials, build, launcher, listener, verbose, privileged);
         final BuiltInContainer runInContainer = new BuiltInContainer(docker);
         build.addAction(runInContainer);
 
-        DockerDecoratedLauncher decorated = new DockerDecoratedLauncher(selector, launcher, runInContainer, build, whoAmI(launcher));
+        if (selector.canPrepareBeforeCheckout(build)) {
+            // image preparation doesn't depend on workspace, so run it concurrently with SCM checkout
+            docker.setupCredentials(build);
+            runInContainer.imagePreparation = executors.submit(new java.util.concurrent.Callable<String>() {
+                public String call() throws Exception {
+                    return selector.prepareDockerImage(docker, build, listener);
+                }
+            });
+        }
+
+        runInContainer.userId = whoAmI(launcher);
+        DockerDecoratedLauncher decorated = new DockerDecoratedLauncher(selector, launcher, runInContainer, build, runInContainer.userId);
         return decorated;
     }
 
+    @Override
+    public Collection<? extends Action> getProjectActions(AbstractProject job) {
+        return Collections.singleton(new ResourceUsageTrend(job));
+    }
+
     @Override
     public Environment setUp(AbstractBuild build, final Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
 
@@ -123,33 +251,96 @@ public class DockerBuildWrapper extends BuildWrapper {
 
         BuiltInContainer runInContainer = build.getAction(BuiltInContainer.class);
 
-        // mount slave root in Docker container so build process can access project workspace, tools, as well as jars copied by maven plugin.
-        final String root = Computer.currentComputer().getNode().getRootPath().getRemote();
-        runInContainer.bindMount(root);
-
-        // mount tmpdir so we can access temporary file created to run shell build steps (and few others)
-        String tmp = build.getWorkspace().act(GetTmpdir);
-        runInContainer.bindMount(tmp);
-
-        // mount ToolIntallers installation directory so installed tools are available inside container
+        if (remoteDaemon) {
+            // docker daemon can't access slave filesystem, so workspace is synchronized with a data volume
+            runInContainer.sync = new WorkspaceSync(runInContainer.getDocker(), build.getWorkspace(), build.getBuiltOnStr(), runInContainer.userId, listener);
+            runInContainer.getDocker().setupCredentials(build);
+            runInContainer.sync.prepareVolume();
+            runInContainer.bindMount(runInContainer.sync.getVolume(), build.getWorkspace().getRemote());
+        } else if (bakeTools) {
+            // tools are baked into image, so only mount workspace
+            runInContainer.bindMount(build.getWorkspace().getRemote());
+            FilePath wsTmp = build.getWorkspace().sibling(build.getWorkspace().getName() + "@tmp");
+            wsTmp.mkdirs();
+            runInContainer.bindMount(wsTmp.getRemote());
+
+            String tmp = build.getWorkspace().act(GetTmpdir);
+            runInContainer.bindMount(tmp);
+        } else {
+            // mount slave root in Docker container so build process can access project workspace, tools, as well as jars copied by maven plugin.
+            final String root = Computer.currentComputer().getNode().getRootPath().getRemote();
+            runInContainer.bindMount(root);
+
+            // mount tmpdir so we can access temporary file created to run shell build steps (and few others)
+            String tmp = build.getWorkspace().act(GetTmpdir);
+            runInContainer.bindMount(tmp);
+        }
 
         for (Volume volume : volumes) {
             runInContainer.bindMount(volume.getHostPath(), volume.getPath());
         }
 
+        for (TmpfsMount mount : tmpfs) {
+            if (!runInContainer.tmpfsMount(mount.getPath(), mount.getSize())) {
+                listener.getLogger().println("Can't mount tmpfs on " + mount.getPath() + " as this directory is bind mounted from slave"
+                        + " (slave temporary directory or workspace), ignored. Mount it on another directory and set TMPDIR instead");
+            }
+        }
+
         runInContainer.getDocker().setupCredentials(build);
 
         if (runInContainer.container == null) {
             if (runInContainer.image == null) {
                 try {
-                    runInContainer.image = selector.prepareDockerImage(runInContainer.getDocker(), build, listener);
+                    runInContainer.image = runInContainer.imagePreparation != null
+                            ? runInContainer.waitForImagePreparation()
+                            : selector.prepareDockerImage(runInContainer.getDocker(), build, listener);
                 } catch (InterruptedException e) {
                     throw new RuntimeException("Interrupted");
                 }
+                runInContainer.imageDigest = runInContainer.getDocker().getImageDigest(runInContainer.image);
+                listener.getLogger().println("Using Docker image " + runInContainer.image + " (" + runInContainer.imageDigest + ")");
+
+                runInContainer.imageId = runInContainer.getDocker().getImageId(runInContainer.image);
+                if (bakeTools) {
+                    runInContainer.runImage = ToolLayers.bake(runInContainer.getDocker(), build, runInContainer.image, listener);
+                }
+
+                if (dependencySnapshot != null) {
+                    useDependencySnapshot(runInContainer, build, listener);
+                }
             }
 
-            runInContainer.container = startBuildContainer(runInContainer, build, listener);
-            listener.getLogger().println("Docker container " + runInContainer.container + " started to host the build");
+            if (keepAlive && sidecars.isEmpty() && !remoteDaemon) {
+                reattach(runInContainer, build, listener);
+            }
+        }
+
+        if (runInContainer.container == null) {
+            if (limitResources) {
+                allocateResources(runInContainer, listener);
+            }
+
+            boolean started = false;
+            List<SidecarStart> services = new ArrayList<SidecarStart>();
+            try {
+                startSidecars(runInContainer, services, listener);
+                runInContainer.container = startBuildContainer(runInContainer, build, listener);
+                listener.getLogger().println("Docker container " + runInContainer.container + " started to host the build");
+                if (runInContainer.sync != null) {
+                    runInContainer.sync.init(runInContainer.container);
+                } else {
+                    runInContainer.sampleUsage();
+                }
+                waitForSidecars(services);
+                started = true;
+            } finally {
+                if (!started) {
+                    // service containers still starting would be missed by tearDown
+                    cancelSidecars(services);
+                    abort(runInContainer, listener);
+                }
+            }
         }
 
         // We are all set, DockerDecoratedLauncher now can wrap launcher commands with docker-exec
@@ -158,23 +349,232 @@ public class DockerBuildWrapper extends BuildWrapper {
         return new Environment() {
             @Override
             public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
-                return build.getAction(BuiltInContainer.class).tearDown();
+                return build.getAction(BuiltInContainer.class).tearDown(build, listener);
             }
         };
     }
 
 
 
+    /**
+     * Start build container from dependency snapshot matching workspace manifests if available, otherwise record it
+     * to be committed once build completes.
+     */
+    private void useDependencySnapshot(BuiltInContainer runInContainer, AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
+        Docker docker = runInContainer.getDocker();
+        String snapshot = dependencySnapshot.getSnapshot(build.getParent(), build.getWorkspace(),
+                docker.getImageId(runInContainer.getRunImage()));
+        if (snapshot == null) {
+            listener.getLogger().println("No dependency manifest found in workspace, dependency snapshot disabled");
+        } else if (docker.hasImage(snapshot)) {
+            listener.getLogger().println("Using dependency snapshot " + snapshot);
+            runInContainer.runImage = snapshot;
+        } else {
+            runInContainer.dependencySnapshot = dependencySnapshot;
+            runInContainer.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Reserve CPUs and memory for build container. Node topology is read from slave, so resources are only limited
+     * when docker daemon runs there.
+     */
+    private void allocateResources(BuiltInContainer runInContainer, BuildListener listener) throws IOException, InterruptedException {
+        if (!runInContainer.getDocker().isLocal()) {
+            listener.getLogger().println("Docker daemon doesn't run on this node, build container resources are not limited");
+            return;
+        }
+        runInContainer.resources = NodeResourceAllocator.forNode(Computer.currentComputer().getNode()).allocate();
+        listener.getLogger().println("Allocated " + runInContainer.resources + " to build container");
+        if (runInContainer.resources.getCpuset() == null) {
+            listener.getLogger().println("Build container can't be pinned to dedicated CPUs, as all of them are allocated or node CPUs are unknown");
+        }
+    }
+
+    /**
+     * Reuse build container kept alive by a previous build of this job on this node, if still running. Otherwise,
+     * record the key for build container to be parked once build completes.
+     */
+    private void reattach(BuiltInContainer runInContainer, AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
+        Docker docker = runInContainer.getDocker();
+        runInContainer.poolKey = ContainerPool.key(build.getParent().getFullName(), build.getBuiltOnStr(),
+                build.getWorkspace().getRemote(), docker.getImageId(runInContainer.getRunImage()), runInContainer.getVolumes(build),
+                runInContainer.getTmpfs(), hostNetwork, limitResources, command, runInContainer.userId);
+        runInContainer.keepAliveTimeout = keepAliveTimeout;
+        ContainerPool.reap(docker.withListener(TaskListener.NULL), build.getBuiltOnStr());
+
+        ContainerPool.Parked parked = ContainerPool.take(runInContainer.poolKey);
+        if (parked == null) return;
+
+        if (!docker.isRunning(parked.getContainer())) {
+            listener.getLogger().println("Docker container " + parked.getContainer() + " kept alive by previous build is not running anymore");
+            parked.evict();
+            return;
+        }
+        parked.detach();
+        runInContainer.container = parked.getContainer();
+        runInContainer.hostNetwork = hostNetwork;
+        if (limitResources) {
+            // CPUs have been released while container was parked
+            allocateResources(runInContainer, listener);
+            if (runInContainer.resources != null && runInContainer.resources.getCpuset() != null) {
+                docker.updateCpuset(runInContainer.container, runInContainer.resources.getCpuset());
+            }
+        }
+        runInContainer.execEnvironment = buildContainerEnvironment(build, listener);
+        runInContainer.sampleUsage();
+        listener.getLogger().println("Reusing Docker container " + runInContainer.container + " kept alive by previous build");
+    }
+
+    /**
+     * Start sidecar containers concurrently, on a dedicated network so build container can access them by alias.
+     */
+    private void startSidecars(final BuiltInContainer runInContainer, List<SidecarStart> services, final BuildListener listener) throws IOException, InterruptedException {
+        if (sidecars.isEmpty()) {
+            runInContainer.hostNetwork = hostNetwork;
+            return;
+        }
+        if (hostNetwork) {
+            listener.getLogger().println("Host networking can't be used with service containers, ignored");
+        }
+
+        runInContainer.network = "jenkins-" + UUID.randomUUID();
+        runInContainer.getDocker().createNetwork(runInContainer.network);
+
+        for (final SidecarContainer sidecar : sidecars) {
+            SidecarStart service = new SidecarStart() {
+                @Override
+                protected String start() throws IOException, InterruptedException {
+                    String id = sidecar.start(runInContainer.getDocker(), runInContainer.network, listener);
+                    runInContainer.sidecars.add(id);
+                    listener.getLogger().println("Docker container " + id + " started to host service " + sidecar.getAlias());
+                    return id;
+                }
+
+                @Override
+                protected void waitUntilReady(String id) throws IOException, InterruptedException {
+                    sidecar.waitUntilReady(runInContainer.getDocker(), id, listener);
+                }
+            };
+            services.add(service);
+            service.future = executors.submit(service);
+        }
+    }
+
+    private void waitForSidecars(List<SidecarStart> services) throws IOException, InterruptedException {
+        try {
+            for (SidecarStart service : services) {
+                service.future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+            throw new IOException("Failed to start service container", cause);
+        }
+    }
+
+    /**
+     * Abort service containers readiness checks, and wait for the ones being started, so they are all recorded before
+     * tearDown.
+     */
+    private void cancelSidecars(List<SidecarStart> services) {
+        for (SidecarStart service : services) {
+            service.cancel();
+        }
+        boolean interrupted = false;
+        for (SidecarStart service : services) {
+            while (true) {
+                try {
+                    service.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Start of a service container. Can be cancelled while waiting for readiness, but <code>docker run</code> is never
+     * interrupted, as the container would be created anyway without us knowing its ID.
+     */
+    /* package */ static abstract class SidecarStart implements java.util.concurrent.Callable<Void> {
+        private static final int PENDING = 0, STARTING = 1, CHECKING = 2, CANCELLED = 3, DONE = 4;
+
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        /* package */ Future<Void> future;
+
+        public Void call() throws Exception {
+            if (!state.compareAndSet(PENDING, STARTING)) return null;
+            try {
+                String id = start();
+                if (state.compareAndSet(STARTING, CHECKING)) {
+                    waitUntilReady(id);
+                }
+                return null;
+            } finally {
+                synchronized (this) {
+                    state.set(DONE);
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Start service container, and record it so it is removed by tearDown.
+         * @return container ID
+         */
+        protected abstract String start() throws IOException, InterruptedException;
+
+        protected abstract void waitUntilReady(String id) throws IOException, InterruptedException;
+
+        /* package */ void cancel() {
+            if (state.compareAndSet(PENDING, DONE)) {
+                future.cancel(false);
+            } else if (!state.compareAndSet(STARTING, CANCELLED) && state.get() == CHECKING) {
+                future.cancel(true);
+            }
+        }
+
+        /* package */ synchronized void await() throws InterruptedException {
+            while (state.get() != DONE) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Cleanup containers already started when build environment failed to set up.
+     */
+    private void abort(BuiltInContainer runInContainer, BuildListener listener) {
+        try {
+            runInContainer.tearDown(null, listener);
+        } catch (Exception e) {
+            listener.getLogger().println("Failed to cleanup docker containers: " + e.getMessage());
+        }
+    }
+
     private String startBuildContainer(BuiltInContainer runInContainer, AbstractBuild build, BuildListener listener) throws IOException {
         try {
             EnvVars environment = buildContainerEnvironment(build, listener);
+            if (dependencySnapshot != null) {
+                // keep build environment out of container configuration, which would be committed as snapshot
+                runInContainer.execEnvironment = environment;
+                environment = new EnvVars();
+            }
 
             String workdir = build.getWorkspace().getRemote();
 
             Map<String, String> links = new HashMap<String, String>();
 
-            return runInContainer.getDocker().runDetached(runInContainer.image, workdir,
-                    runInContainer.getVolumes(build), runInContainer.getPortsMap(), links,
+            return runInContainer.getDocker().runDetached(runInContainer.getRunImage(), workdir,
+                    runInContainer.getVolumes(build), runInContainer.getTmpfs(), runInContainer.getPortsMap(), links,
+                    runInContainer.hostNetwork ? "host" : runInContainer.network, runInContainer.resources,
+                    runInContainer.poolKey != null ? ContainerPool.labels() : Collections.<String, String>emptyMap(),
                     environment, build.getSensitiveBuildVariables(),
                     command.split(" ")); // Command expected to hung until killed
 
@@ -264,6 +664,44 @@ public class DockerBuildWrapper extends BuildWrapper {
 
     }
 
+    /**
+     * Abort image preparation started by {@link #decorateLauncher} if build completes before {@link #setUp}, and
+     * release docker credentials.
+     */
+    @Extension
+    public static class CancelImagePreparation extends RunListener<AbstractBuild> {
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            BuiltInContainer runInContainer = build.getAction(BuiltInContainer.class);
+            if (runInContainer != null) {
+                runInContainer.cancelImagePreparation();
+                try {
+                    // environment might not have been set up, so tearDown didn't release docker
+                    runInContainer.release();
+                } catch (IOException e) {
+                    listener.getLogger().println("Failed to release docker credentials: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Maximum number of threads preparing images, starting and stopping containers concurrently */
+    private static final int MAX_THREADS = Integer.getInteger(DockerBuildWrapper.class.getName()+".maxThreads", 20);
+
+    /**
+     * Run background docker operations. Pool is bounded, so tasks submitted to it must not wait for each other, and
+     * threads are released once idle. Shut down when plugin is stopped.
+     */
+    /* package */ static final ExecutorService executors;
+
+    static {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), "DockerBuildWrapper"));
+        pool.allowCoreThreadTimeOut(true);
+        executors = new ContextResettingExecutorService(pool);
+    }
+
     private static Callable<String, IOException> GetTmpdir = new MasterToSlaveCallable<String, IOException>() {
         @Override
         public String call() {
@@ -282,6 +720,9 @@ public class DockerBuildWrapper extends BuildWrapper {
             this.volumes.add(new Volume("/var/run/docker.sock","/var/run/docker.sock"));
         }
         if (command == null) command = "/bin/cat";
+        if (tmpfs == null) tmpfs = Collections.emptyList();
+        if (sidecars == null) sidecars = Collections.emptyList();
+        if (keepAliveTimeout == 0) keepAliveTimeout = 30;
         return this;
     }
 }
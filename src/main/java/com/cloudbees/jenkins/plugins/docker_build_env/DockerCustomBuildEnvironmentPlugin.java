@@ -13,4 +13,9 @@ public class DockerCustomBuildEnvironmentPlugin extends Plugin {
     static {
         Items.XSTREAM2.aliasPackage("com.cloudbees.jenkins.plugins.okidocki", "com.cloudbees.jenkins.plugins.docker_build_env");
     }
+
+    @Override
+    public void stop() throws Exception {
+        DockerBuildWrapper.executors.shutdownNow();
+    }
 }
@@ -5,11 +5,15 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Proc;
 import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
 * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -40,13 +44,94 @@ public class DockerDecoratedLauncher extends Launcher.DecoratedLauncher {
         // Do not decorate launcher until SCM checkout completed
         if (!runInContainer.isEnabled()) return super.launch(starter);
 
+        String execId;
         try {
-            runInContainer.getDocker().executeIn(runInContainer.container, userId, starter);
+            if (runInContainer.sync != null) {
+                // build step might have created files in workspace, i.e. shell script
+                runInContainer.sync.push(runInContainer.container);
+            }
+            execId = runInContainer.getDocker().executeIn(runInContainer.container, userId,
+                    runInContainer.execEnvironment, build.getSensitiveBuildVariables(), starter);
         } catch (InterruptedException e) {
             throw new IOException("Caught InterruptedException", e);
         }
 
-        return super.launch(starter);
+        return new ContainerProc(super.launch(starter), runInContainer.getDocker(), runInContainer.container, execId, getListener());
     }
 
+    /**
+     * Propagate abort to the processes running inside container, as killing <code>docker exec</code> client doesn't
+     * stop them.
+     */
+    private static class ContainerProc extends Proc {
+        private final Proc proc;
+        private final Docker docker;
+        private final String container;
+        private final String execId;
+        private final TaskListener listener;
+
+        private ContainerProc(Proc proc, Docker docker, String container, String execId, TaskListener listener) {
+            this.proc = proc;
+            this.docker = docker;
+            this.container = container;
+            this.execId = execId;
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean isAlive() throws IOException, InterruptedException {
+            return proc.isAlive();
+        }
+
+        @Override
+        public void kill() throws IOException, InterruptedException {
+            try {
+                terminate();
+            } finally {
+                proc.kill();
+            }
+        }
+
+        @Override
+        public int join() throws IOException, InterruptedException {
+            try {
+                return proc.join();
+            } catch (InterruptedException e) {
+                try {
+                    terminate();
+                } catch (IOException x) {
+                    // i.e. container already stopped, build has to be reported as aborted anyway
+                    LOGGER.log(Level.WARNING, "Failed to terminate processes in Docker container " + container, x);
+                }
+                throw e;
+            }
+        }
+
+        private void terminate() throws IOException, InterruptedException {
+            List<String> pids = docker.terminate(container, execId, TERMINATION_GRACE_PERIOD);
+            if (!pids.isEmpty()) {
+                listener.getLogger().println("Terminated processes " + pids + " in Docker container " + container);
+            }
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return proc.getStdout();
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return proc.getStderr();
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return proc.getStdin();
+        }
+    }
+
+    /** Delay (in seconds) for processes inside container to handle SIGTERM before they get killed */
+    private static final int TERMINATION_GRACE_PERIOD = Integer.getInteger(DockerDecoratedLauncher.class.getName()+".terminationGracePeriod", 10);
+
+    private static final Logger LOGGER = Logger.getLogger(DockerDecoratedLauncher.class.getName());
 }
@@ -17,5 +17,13 @@ public abstract class DockerImageSelector extends AbstractDescribableImpl<Docker
 
     public abstract String prepareDockerImage(Docker docker, AbstractBuild build, TaskListener listener) throws IOException, InterruptedException;
 
+    /**
+     * Image preparation which doesn't rely on workspace content (nor on environment contributed by SCM) can run
+     * concurrently with SCM checkout.
+     */
+    public boolean canPrepareBeforeCheckout(AbstractBuild build) {
+        return false;
+    }
+
     public abstract Collection<String> getDockerImagesUsedByJob(Job<?, ?> job);
 }
@@ -0,0 +1,81 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parse <code>docker pull</code> output, while forwarding it to actual output stream, to record download and
+ * extraction time of each layer.
+ */
+public class DockerPullOutputParser extends LineTransformationOutputStream {
+
+    // "511136ea3c5a: Pulling fs layer"
+    private static final Pattern LAYER = Pattern.compile("^([0-9a-f]{12}): (.*)$");
+
+    private final OutputStream out;
+    private final Map<String, LayerProgress> layers = new LinkedHashMap<String, LayerProgress>();
+
+    public DockerPullOutputParser(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        out.write(b, 0, len);
+
+        Matcher m = LAYER.matcher(trimEOL(new String(b, 0, len, "UTF-8")));
+        if (!m.matches()) return;
+
+        String id = m.group(1);
+        String status = m.group(2);
+        long now = System.currentTimeMillis();
+
+        LayerProgress layer = layers.get(id);
+        if (layer == null) {
+            layer = new LayerProgress(now);
+            layers.put(id, layer);
+        }
+        if (status.startsWith("Already exists")) {
+            layer.cached = true;
+        } else if (status.startsWith("Download complete")) {
+            layer.downloaded = now;
+        } else if (status.startsWith("Pull complete")) {
+            layer.completed = now;
+        }
+    }
+
+    /**
+     * @return layers as reported by <code>docker pull</code> once it has completed.
+     */
+    public List<DockerReport.Layer> finish() throws IOException {
+        forceEol();
+        List<DockerReport.Layer> result = new ArrayList<DockerReport.Layer>();
+        for (Map.Entry<String, LayerProgress> e : layers.entrySet()) {
+            LayerProgress layer = e.getValue();
+            if (!layer.cached && layer.downloaded == 0) continue; // not a layer, i.e. "latest: Pulling from ubuntu"
+            long downloadTime = layer.downloaded > 0 ? layer.downloaded - layer.start : 0;
+            long extractTime = layer.completed > 0 && layer.downloaded > 0 ? layer.completed - layer.downloaded : 0;
+            result.add(new DockerReport.Layer(e.getKey(), downloadTime, extractTime, layer.cached));
+        }
+        return result;
+    }
+
+    private static class LayerProgress {
+        private final long start;
+        private long downloaded;
+        private long completed;
+        private boolean cached;
+
+        private LayerProgress(long start) {
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Structured report on docker image preparation, collected from <code>docker build</code>, <code>docker pull</code>
+ * and <code>docker load</code> output, so one can identify Dockerfile instructions which break caching or slow registries.
+ */
+public class DockerReport {
+
+    private final List<BuildStep> buildSteps = new ArrayList<BuildStep>();
+
+    private final List<Pull> pulls = new ArrayList<Pull>();
+
+    private List<Wait> waits = new ArrayList<Wait>();
+
+    private List<Load> loads = new ArrayList<Load>();
+
+    public synchronized List<BuildStep> getBuildSteps() {
+        return new ArrayList<BuildStep>(buildSteps);
+    }
+
+    public synchronized List<Pull> getPulls() {
+        return new ArrayList<Pull>(pulls);
+    }
+
+    public synchronized List<Wait> getWaits() {
+        // introduced after build and pull records, so null when deserialized from an older build
+        return waits != null ? new ArrayList<Wait>(waits) : Collections.<Wait>emptyList();
+    }
+
+    public synchronized List<Load> getLoads() {
+        // introduced after build and pull records, so null when deserialized from an older build
+        return loads != null ? new ArrayList<Load>(loads) : Collections.<Load>emptyList();
+    }
+
+    public synchronized boolean isEmpty() {
+        return buildSteps.isEmpty() && pulls.isEmpty() && getWaits().isEmpty() && getLoads().isEmpty();
+    }
+
+    /* package */ synchronized void add(BuildStep step) {
+        buildSteps.add(step);
+    }
+
+    /* package */ synchronized void add(Pull pull) {
+        pulls.add(pull);
+    }
+
+    /* package */ synchronized void add(Wait wait) {
+        if (waits == null) waits = new ArrayList<Wait>();
+        waits.add(wait);
+    }
+
+    /* package */ synchronized void add(Load load) {
+        if (loads == null) loads = new ArrayList<Load>();
+        loads.add(load);
+    }
+
+    /**
+     * Time spent waiting for docker daemon to accept an operation, see {@link DaemonAdmission}.
+     */
+    public static class Wait {
+        private final String operation;
+        private final long duration;
+
+        public Wait(String operation, long duration) {
+            this.operation = operation;
+            this.duration = duration;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        /** @return duration in milliseconds */
+        public long getDuration() {
+            return duration;
+        }
+    }
+
+    /**
+     * A Dockerfile instruction executed by <code>docker build</code>.
+     */
+    public static class BuildStep {
+        private final String instruction;
+        private final long duration;
+        private final boolean cached;
+
+        public BuildStep(String instruction, long duration, boolean cached) {
+            this.instruction = instruction;
+            this.duration = duration;
+            this.cached = cached;
+        }
+
+        public String getInstruction() {
+            return instruction;
+        }
+
+        /** @return duration in milliseconds */
+        public long getDuration() {
+            return duration;
+        }
+
+        public boolean isCached() {
+            return cached;
+        }
+    }
+
+    /**
+     * An image pulled from a registry.
+     */
+    public static class Pull {
+        private final String image;
+        private final long duration;
+        private final long size;
+        private final List<Layer> layers;
+
+        public Pull(String image, long duration, long size, List<Layer> layers) {
+            this.image = image;
+            this.duration = duration;
+            this.size = size;
+            this.layers = layers;
+        }
+
+        public String getImage() {
+            return image;
+        }
+
+        /** @return duration in milliseconds */
+        public long getDuration() {
+            return duration;
+        }
+
+        /** @return image size in bytes, <code>0</code> if unknown */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return bytes per second, computed from image size so including layers already present, <code>0</code> if
+         * unknown
+         */
+        public long getThroughput() {
+            return size > 0 && duration > 0 ? size * 1000 / duration : 0;
+        }
+
+        public List<Layer> getLayers() {
+            return layers != null ? layers : Collections.<Layer>emptyList();
+        }
+    }
+
+    /**
+     * An image loaded from a tarball created by <code>docker save</code>.
+     */
+    public static class Load {
+        private final String image;
+        private final String tarball;
+        private final long duration;
+        private final long size;
+
+        public Load(String image, String tarball, long duration, long size) {
+            this.image = image;
+            this.tarball = tarball;
+            this.duration = duration;
+            this.size = size;
+        }
+
+        public String getImage() {
+            return image;
+        }
+
+        /** @return path of the tarball on slave */
+        public String getTarball() {
+            return tarball;
+        }
+
+        /** @return duration in milliseconds */
+        public long getDuration() {
+            return duration;
+        }
+
+        /** @return tarball size in bytes, as stored on slave (possibly compressed) */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * An image layer, as reported by <code>docker pull</code>.
+     */
+    public static class Layer {
+        private final String id;
+        private final long downloadTime;
+        private final long extractTime;
+        private final boolean cached;
+
+        public Layer(String id, long downloadTime, long extractTime, boolean cached) {
+            this.id = id;
+            this.downloadTime = downloadTime;
+            this.extractTime = extractTime;
+            this.cached = cached;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /** @return download duration in milliseconds */
+        public long getDownloadTime() {
+            return downloadTime;
+        }
+
+        /** @return extraction duration in milliseconds */
+        public long getExtractTime() {
+            return extractTime;
+        }
+
+        /** @return <code>true</code> if layer was already available on node */
+        public boolean isCached() {
+            return cached;
+        }
+    }
+}
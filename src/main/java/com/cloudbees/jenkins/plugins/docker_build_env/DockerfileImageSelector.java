@@ -2,32 +2,46 @@ package com.cloudbees.jenkins.plugins.docker_build_env;
 
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.Descriptor;
 import hudson.model.Job;
+import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 import jenkins.MasterToSlaveFileCallable;
 import org.apache.commons.io.FileUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.File;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Formatter;
+import java.util.List;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
 public class DockerfileImageSelector extends DockerImageSelector {
 
+    /** Maximum number of previous builds images to use as layer cache sources */
+    private static final int MAX_CACHE_SOURCES = 3;
+
+    /** Maximum number of previous builds to search for layer cache sources */
+    private static final int MAX_SCANNED_BUILDS = 10;
+
     private String contextPath;
 
     private String dockerfile;
 
+    /** Repository built images are pushed to, so other nodes can use them as layer cache */
+    private String cacheRepository;
+
     @DataBoundConstructor
     public DockerfileImageSelector(String contextPath, String dockerfile) {
         this.contextPath = contextPath;
@@ -45,12 +59,58 @@ public class DockerfileImageSelector extends DockerImageSelector {
         // search for a tagged image with this hash ID
         if (!docker.hasImage(hash)) {
             listener.getLogger().println("Build Docker image from "+expandedContextPath+"/Dockerfile ...");
-            docker.buildImage(filePath, dockerfile, hash);
+            docker.buildImage(filePath, dockerfile, hash, getCacheSources(docker, build, listener));
+            if (cacheRepository != null) {
+                push(docker, hash, listener);
+            }
         }
 
         return hash;
     }
 
+    /**
+     * Push built image to cache repository. Image then gets a repository digest, recorded as build image digest, that
+     * next builds on other nodes can pull.
+     */
+    private void push(Docker docker, String hash, TaskListener listener) throws IOException, InterruptedException {
+        String tag = cacheRepository + ":" + hash;
+        listener.getLogger().println("Push Docker image to " + tag + " to be used as layer cache by next builds");
+        try {
+            docker.tagImage(hash, tag);
+            docker.pushImage(tag);
+        } catch (IOException e) {
+            listener.getLogger().println("Failed to push Docker image to cache repository, ignored: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Collect images used by recent previous builds, to be used as layer cache sources. Images missing on this node are
+     * pulled by repository digest, when they have been pushed to {@link #cacheRepository}. Images available on node
+     * are passed as well, though docker would already find their layers in local build cache.
+     */
+    private List<String> getCacheSources(Docker docker, AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
+        List<String> images = new ArrayList<String>();
+        int scanned = 0;
+        for (Run r = build.getPreviousBuild(); r != null && images.size() < MAX_CACHE_SOURCES && scanned < MAX_SCANNED_BUILDS; r = r.getPreviousBuild()) {
+            scanned++;
+            BuiltInContainer previous = r.getAction(BuiltInContainer.class);
+            if (previous == null || previous.getImageId() == null || images.contains(previous.getImageId())) continue;
+
+            if (docker.getImageId(previous.getImageId()) == null) {
+                String digest = previous.getImageDigest();
+                if (digest == null || !digest.contains("@")) continue;
+                try {
+                    docker.pullImage(digest);
+                } catch (IOException e) {
+                    listener.getLogger().println("Can't pull " + digest + " to be used as layer cache, ignored");
+                    continue;
+                }
+            }
+            images.add(previous.getImageId());
+        }
+        return images;
+    }
+
     @Override
     public Collection<String> getDockerImagesUsedByJob(Job<?, ?> job) {
         // TODO get last build and parse Dockerfile "FROM"
@@ -65,6 +125,15 @@ public class DockerfileImageSelector extends DockerImageSelector {
         return dockerfile;
     }
 
+    public String getCacheRepository() {
+        return cacheRepository;
+    }
+
+    @DataBoundSetter
+    public void setCacheRepository(String cacheRepository) {
+        this.cacheRepository = Util.fixEmptyAndTrim(cacheRepository);
+    }
+
     private Object readResolve() {
         if (dockerfile == null) dockerfile="Dockerfile";
         return this;
@@ -0,0 +1,222 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Item;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.security.ACL;
+import hudson.util.Secret;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Share key material (TLS certificates, docker <code>config.json</code>) materialized on a node between builds, so
+ * credentials aren't written to slave filesystem for every build. Entries are reference counted and closed once idle
+ * for {@link #IDLE_TIMEOUT} minutes, or as soon as unused when credentials have been updated.
+ */
+public class KeyMaterialCache {
+
+    private static final int IDLE_TIMEOUT = Integer.getInteger(KeyMaterialCache.class.getName()+".idleTimeout", 10);
+
+    private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Get key material for a docker daemon and registry on a node, materializing it if not cached yet.
+     * Returned key material has to be closed when not used anymore.
+     */
+    public static KeyMaterial acquire(String node, final VirtualChannel channel, final Item context, final DockerServerEndpoint server, final DockerRegistryEndpoint registry) throws IOException, InterruptedException {
+        // credentials updated since they were materialized get a distinct key
+        String endpoints = node + "|" + server.getUri() + "|" + server.getCredentialsId()
+                + "|" + registry.getUrl() + "|" + registry.getCredentialsId();
+        String key = endpoints + "|" + fingerprint(context, server.getCredentialsId())
+                + "|" + fingerprint(context, registry.getCredentialsId());
+
+        return acquire(endpoints, key, new Materializer() {
+            public KeyMaterial materialize() throws IOException, InterruptedException {
+                return server.newKeyMaterialFactory(context, channel)
+                        .plus(registry.newKeyMaterialFactory(context, channel))
+                        .materialize();
+            }
+        });
+    }
+
+    /**
+     * Get cached key material for <code>key</code>, materializing it if not cached yet. Unused entries for the same
+     * <code>endpoints</code> are obsolete, and closed.
+     */
+    /* package */ static KeyMaterial acquire(String endpoints, String key, Materializer materializer) throws IOException, InterruptedException {
+        List<Entry> obsolete = new ArrayList<Entry>();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.refs++;
+                return new Lease(entry);
+            }
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Entry> e = it.next();
+                if (e.getKey().startsWith(endpoints + "|") && e.getValue().refs == 0) {
+                    obsolete.add(e.getValue());
+                    it.remove();
+                }
+            }
+        }
+        close(obsolete);
+
+        Entry created = new Entry(materializer.materialize());
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = created;
+                entries.put(key, entry);
+            }
+            entry.refs++;
+        }
+        if (entry != created) {
+            // materialized concurrently by another build
+            close(Collections.singletonList(created));
+        }
+        return new Lease(entry);
+    }
+
+    /**
+     * Identify credentials content, so key material is materialized again if credentials are updated.
+     */
+    private static String fingerprint(Item context, String credentialsId) {
+        if (credentialsId == null) return "none";
+        StandardCredentials credentials = CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(StandardCredentials.class, context, ACL.SYSTEM,
+                        Collections.<DomainRequirement>emptyList()),
+                CredentialsMatchers.withId(credentialsId));
+        return credentials != null ? fingerprint(credentials) : "none";
+    }
+
+    /**
+     * Digest credentials fields, using plain text for {@link Secret}s as their encrypted form changes every time it is
+     * computed. Other values rely on <code>toString()</code>, so at worst key material is materialized again.
+     */
+    /* package */ static String fingerprint(Object credentials) {
+        StringBuilder s = new StringBuilder(credentials.getClass().getName());
+        for (Class<?> c = credentials.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers())) continue;
+                Object value;
+                try {
+                    f.setAccessible(true);
+                    value = f.get(credentials);
+                } catch (IllegalAccessException e) {
+                    value = null;
+                }
+                s.append('|').append(f.getName()).append('=')
+                        .append(value instanceof Secret ? ((Secret) value).getPlainText() : value);
+            }
+        }
+        return Util.getDigestOf(s.toString());
+    }
+
+    /* package */ interface Materializer {
+        KeyMaterial materialize() throws IOException, InterruptedException;
+    }
+
+    private static void close(List<Entry> obsolete) {
+        for (Entry entry : obsolete) {
+            try {
+                entry.material.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to cleanup docker key material", e);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final KeyMaterial material;
+        private int refs;
+        private long lastUsed = System.currentTimeMillis();
+
+        private Entry(KeyMaterial material) {
+            this.material = material;
+        }
+    }
+
+    /**
+     * Reference to a cached key material. Closing it only releases the reference.
+     */
+    private static class Lease extends KeyMaterial {
+        private transient Entry entry;
+
+        private Lease(Entry entry) {
+            super(entry.material.env());
+            this.entry = entry;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (entries) {
+                if (entry != null) {
+                    entry.refs--;
+                    entry.lastUsed = System.currentTimeMillis();
+                    entry = null;
+                }
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Extension
+    public static class Eviction extends AsyncPeriodicWork {
+
+        public Eviction() {
+            super("Docker key material eviction");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            evict(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(IDLE_TIMEOUT));
+        }
+    }
+
+    /**
+     * Close key material not used since <code>idle</code>.
+     */
+    /* package */ static void evict(long idle) {
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (entries) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry.refs == 0 && entry.lastUsed < idle) {
+                    evicted.add(entry);
+                    it.remove();
+                }
+            }
+        }
+        close(evicted);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(KeyMaterialCache.class.getName());
+}
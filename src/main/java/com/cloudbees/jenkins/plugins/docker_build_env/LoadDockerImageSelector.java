@@ -0,0 +1,112 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Descriptor;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Load docker image from a tarball created by <code>docker save</code>, for slaves which can't access a docker
+ * registry, or to distribute large base images from shared storage.
+ */
+public class LoadDockerImageSelector extends DockerImageSelector {
+
+    private final String path;
+
+    @DataBoundConstructor
+    public LoadDockerImageSelector(String path) {
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String prepareDockerImage(Docker docker, AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
+        String expandedPath = build.getEnvironment(listener).expand(path);
+        FilePath tarball = isAbsolute(expandedPath)
+                ? new FilePath(docker.getLauncher().getChannel(), expandedPath)
+                : build.getWorkspace().child(expandedPath);
+        if (!tarball.exists()) {
+            throw new IOException("Docker image tarball "+expandedPath+" doesn't exist");
+        }
+
+        // tarball isn't read to check image is already loaded, as this would be as costly as loading it
+        String signature = tarball.length() + ":" + tarball.lastModified();
+        FilePath marker = getMarker(build, tarball);
+        String id = marker != null ? readMarker(marker, signature) : null;
+        if (id != null && docker.getImageId(id) != null) {
+            return id;
+        }
+
+        listener.getLogger().println("Load Docker image from "+expandedPath+" ...");
+        String image = docker.loadImage(tarball);
+        id = docker.getImageId(image);
+        if (id == null) {
+            throw new IOException("Docker image "+image+" loaded from "+expandedPath+" isn't available");
+        }
+        if (marker != null) {
+            writeMarker(marker, signature, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return file on node recording the image loaded from <code>tarball</code>, so it survives a restart,
+     * <code>null</code> if node is offline
+     */
+    private static FilePath getMarker(AbstractBuild build, FilePath tarball) {
+        Node node = build.getBuiltOn();
+        FilePath root = node != null ? node.getRootPath() : null;
+        return root != null ? root.child("docker-loaded-images").child(Util.getDigestOf(tarball.getRemote())) : null;
+    }
+
+    /**
+     * @return ID of the image loaded from tarball, <code>null</code> if tarball has never been loaded or has been
+     * updated since, according to its size and timestamp <code>signature</code>
+     */
+    /* package */ static String readMarker(FilePath marker, String signature) throws IOException, InterruptedException {
+        if (!marker.exists()) return null;
+        String[] lines = marker.readToString().split("\n");
+        return lines.length == 2 && lines[0].equals(signature) ? lines[1].trim() : null;
+    }
+
+    /* package */ static void writeMarker(FilePath marker, String signature, String id) throws IOException, InterruptedException {
+        marker.getParent().mkdirs();
+        marker.write(signature + "\n" + id + "\n", "UTF-8");
+    }
+
+    @Override
+    public boolean canPrepareBeforeCheckout(AbstractBuild build) {
+        // tarball in workspace might be provided by SCM
+        return isAbsolute(path) && !path.contains("$");
+    }
+
+    private static boolean isAbsolute(String path) {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public Collection<String> getDockerImagesUsedByJob(Job<?, ?> job) {
+        return Collections.emptyList();
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<DockerImageSelector> {
+
+        @Override
+        public String getDisplayName() {
+            return "Load docker image from a tarball";
+        }
+    }
+}
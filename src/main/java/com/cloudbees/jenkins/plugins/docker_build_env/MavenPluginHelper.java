@@ -2,11 +2,14 @@ package com.cloudbees.jenkins.plugins.docker_build_env;
 
 import hudson.Extension;
 import hudson.maven.TcpSocketHostLocator;
+import hudson.model.AbstractBuild;
+import hudson.model.Executor;
+import hudson.model.Queue;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -14,14 +17,43 @@ import java.net.UnknownHostException;
 @Extension(ordinal = 99)
 public class MavenPluginHelper extends TcpSocketHostLocator {
 
+    private static final long TTL = TimeUnit.MINUTES.toMillis(5);
+
+    private static String dockerhost;
+    private static long resolved;
+
     @Override
     public String getTcpSocketHost() throws IOException {
-        try {
-            InetAddress.getByName("dockerhost");
-            return "dockerhost";
-        } catch (UnknownHostException e) {
-            // we are not running inside a Docker container;
-            return null;
+        Executor executor = Executor.currentExecutor();
+        if (executor != null) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable instanceof AbstractBuild) {
+                // we know if the build runs inside a container, so don't need to rely on DNS
+                BuiltInContainer runInContainer = ((AbstractBuild) executable).getAction(BuiltInContainer.class);
+                if (runInContainer == null || !runInContainer.isEnabled()) {
+                    return null;
+                }
+                return runInContainer.getMavenHost();
+            }
+        }
+        return lookupDockerhost();
+    }
+
+    /**
+     * Resolving an unknown host can block on resolver timeouts, so don't check on every call.
+     */
+    private static synchronized String lookupDockerhost() {
+        long now = System.currentTimeMillis();
+        if (now - resolved > TTL) {
+            try {
+                InetAddress.getByName("dockerhost");
+                dockerhost = "dockerhost";
+            } catch (UnknownHostException e) {
+                // we are not running inside a Docker container;
+                dockerhost = null;
+            }
+            resolved = now;
         }
+        return dockerhost;
     }
 }
@@ -0,0 +1,247 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Share node CPUs and memory between the build containers running concurrently on a node, so each executor get a
+ * disjoint cpuset (within a single NUMA node when possible) and a fair part of node memory.
+ */
+public class NodeResourceAllocator {
+
+    /** Part of node memory to keep for the host itself (slave JVM, docker daemon, page cache...). */
+    private static final int RESERVED_MEMORY_PERCENT = Integer.getInteger(NodeResourceAllocator.class.getName()+".reservedMemoryPercent", 10);
+
+    private static final Map<String, NodeResourceAllocator> allocators = new HashMap<String, NodeResourceAllocator>();
+
+    private final Topology topology;
+    private final int executors;
+    private final BitSet used = new BitSet();
+
+    /* package */ NodeResourceAllocator(Topology topology, int executors) {
+        this.topology = topology;
+        this.executors = Math.max(1, executors);
+    }
+
+    public static NodeResourceAllocator forNode(Node node) throws IOException, InterruptedException {
+        final String name = node.getNodeName();
+        synchronized (allocators) {
+            NodeResourceAllocator allocator = allocators.get(name);
+            if (allocator != null && (allocator.executors == node.getNumExecutors() || !allocator.used.isEmpty())) {
+                return allocator;
+            }
+        }
+
+        VirtualChannel channel = node.getChannel();
+        if (channel == null) {
+            throw new IOException("Node " + name + " is offline");
+        }
+        Topology topology = channel.call(new GetTopology());
+
+        synchronized (allocators) {
+            NodeResourceAllocator allocator = allocators.get(name);
+            if (allocator == null || allocator.used.isEmpty()) {
+                allocator = new NodeResourceAllocator(topology, node.getNumExecutors());
+                allocators.put(name, allocator);
+            }
+            return allocator;
+        }
+    }
+
+    /**
+     * Reserve CPUs and memory for a build container. Allocation has to be {@link Allocation#release() released} when
+     * container is stopped.
+     */
+    public Allocation allocate() {
+        synchronized (allocators) {
+            BitSet cpus = new BitSet();
+            // containers can't be pinned if CPUs docker can use are unknown
+            if (!topology.cpus.isEmpty()) {
+                int share = Math.max(1, topology.cpus.cardinality() / executors);
+
+                cpus = null;
+                // first try to get all CPUs from the same NUMA node, so container don't suffer remote memory access
+                for (BitSet numa : topology.numaNodes) {
+                    BitSet free = (BitSet) numa.clone();
+                    free.and(topology.cpus);
+                    free.andNot(used);
+                    if (free.cardinality() >= share) {
+                        cpus = first(free, share);
+                        break;
+                    }
+                }
+                if (cpus == null) {
+                    BitSet free = (BitSet) topology.cpus.clone();
+                    free.andNot(used);
+                    cpus = first(free, share);
+                }
+                used.or(cpus);
+            }
+
+            long memory = topology.memory * (100 - RESERVED_MEMORY_PERCENT) / 100 / executors;
+            return new Allocation(this, cpus, memory);
+        }
+    }
+
+    private void release(BitSet cpus) {
+        synchronized (allocators) {
+            used.andNot(cpus);
+        }
+    }
+
+    private static BitSet first(BitSet free, int count) {
+        BitSet cpus = new BitSet();
+        for (int i = free.nextSetBit(0); i >= 0 && cpus.cardinality() < count; i = free.nextSetBit(i+1)) {
+            cpus.set(i);
+        }
+        return cpus;
+    }
+
+    /** parse linux cpu list format, i.e. <code>0-3,8-11</code> */
+    /* package */ static BitSet parseCpuList(String list) {
+        BitSet cpus = new BitSet();
+        if (list.length() == 0) return cpus;
+        for (String range : list.split(",")) {
+            int i = range.indexOf('-');
+            if (i < 0) {
+                cpus.set(Integer.parseInt(range));
+            } else {
+                cpus.set(Integer.parseInt(range.substring(0, i)), Integer.parseInt(range.substring(i + 1)) + 1);
+            }
+        }
+        return cpus;
+    }
+
+    /**
+     * CPUs and memory reserved for a build container.
+     */
+    public static class Allocation {
+
+        private final NodeResourceAllocator allocator;
+        private final BitSet cpus;
+        private final long memory;
+        private boolean released;
+
+        private Allocation(NodeResourceAllocator allocator, BitSet cpus, long memory) {
+            this.allocator = allocator;
+            this.cpus = cpus;
+            this.memory = memory;
+        }
+
+        /**
+         * @return cpuset as expected by <code>docker run --cpuset-cpus</code>, or <code>null</code> if all CPUs are
+         * already allocated (more containers than executors) or CPUs available on node are unknown
+         */
+        public String getCpuset() {
+            if (cpus.isEmpty()) return null;
+            StringBuilder s = new StringBuilder();
+            for (int i = cpus.nextSetBit(0); i >= 0; i = cpus.nextSetBit(i+1)) {
+                int j = cpus.nextClearBit(i) - 1;
+                if (s.length() > 0) s.append(',');
+                s.append(i);
+                if (j > i) s.append('-').append(j);
+                i = j;
+            }
+            return s.toString();
+        }
+
+        /**
+         * @return memory limit in bytes, <code>0</code> if node memory is unknown
+         */
+        public long getMemory() {
+            return memory;
+        }
+
+        public synchronized void release() {
+            if (!released) {
+                allocator.release(cpus);
+                released = true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "cpuset=" + getCpuset() + " memory=" + (memory / 1024 / 1024) + "m";
+        }
+    }
+
+    /**
+     * CPUs (grouped by NUMA node) and memory available on a node.
+     */
+    /* package */ static class Topology implements Serializable {
+        /** CPUs containers can be pinned to, empty if unknown */
+        private final BitSet cpus;
+        private final List<BitSet> numaNodes;
+        private final long memory;
+
+        /* package */ Topology(BitSet cpus, List<BitSet> numaNodes, long memory) {
+            this.cpus = cpus;
+            this.numaNodes = numaNodes;
+            this.memory = memory;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class GetTopology extends MasterToSlaveCallable<Topology, IOException> {
+
+        /**
+         * Files listing CPUs available to containers : root cpuset for cgroup v2 and v1 hierarchies, then online CPUs.
+         * CPU IDs aren't always contiguous, for sample if some have been set offline or are isolated.
+         */
+        private static final String[] CPUSETS = {
+                "/sys/fs/cgroup/cpuset.cpus.effective",
+                "/sys/fs/cgroup/cpuset/cpuset.effective_cpus",
+                "/sys/fs/cgroup/cpuset/cpuset.cpus",
+                "/sys/devices/system/cpu/online"
+        };
+
+        public Topology call() throws IOException {
+            BitSet cpus = new BitSet();
+            for (String cpuset : CPUSETS) {
+                File f = new File(cpuset);
+                if (f.exists()) {
+                    cpus = parseCpuList(FileUtils.readFileToString(f).trim());
+                    if (!cpus.isEmpty()) break;
+                }
+            }
+
+            List<BitSet> numaNodes = new ArrayList<BitSet>();
+
+            File[] nodes = new File("/sys/devices/system/node").listFiles();
+            if (nodes != null) {
+                for (File node : nodes) {
+                    File cpulist = new File(node, "cpulist");
+                    if (node.getName().startsWith("node") && cpulist.exists()) {
+                        numaNodes.add(parseCpuList(FileUtils.readFileToString(cpulist).trim()));
+                    }
+                }
+            }
+            if (numaNodes.isEmpty()) {
+                numaNodes.add(cpus);
+            }
+
+            long memory = 0;
+            File meminfo = new File("/proc/meminfo");
+            if (meminfo.exists()) {
+                for (String line : FileUtils.readLines(meminfo)) {
+                    if (line.startsWith("MemTotal:")) {
+                        memory = Long.parseLong(line.substring(9).replace("kB", "").trim()) * 1024;
+                    }
+                }
+            }
+            return new Topology(cpus, numaNodes, memory);
+        }
+    }
+}
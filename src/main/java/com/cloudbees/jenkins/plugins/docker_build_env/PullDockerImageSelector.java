@@ -6,10 +6,14 @@ import hudson.model.Descriptor;
 import hudson.model.Job;
 import hudson.model.TaskListener;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -18,30 +22,146 @@ public class PullDockerImageSelector extends DockerImageSelector {
 
     public String image;
 
+    private PullPolicy pullPolicy = PullPolicy.IF_MISSING;
+
+    /** Minimal delay (in minutes) between two checks for an updated image with {@link PullPolicy#CHECK_DIGEST} */
+    private int checkInterval = 60;
+
+    /** Last time an image has been checked for update on a node, indexed by node name and image */
+    private static final Map<String, Long> lastChecks = new HashMap<String, Long>();
+
     @DataBoundConstructor
     public PullDockerImageSelector(String image) {
         this.image = image;
     }
 
+    public PullPolicy getPullPolicy() {
+        return pullPolicy;
+    }
+
+    @DataBoundSetter
+    public void setPullPolicy(PullPolicy pullPolicy) {
+        this.pullPolicy = pullPolicy != null ? pullPolicy : PullPolicy.IF_MISSING;
+    }
+
+    public int getCheckInterval() {
+        return checkInterval;
+    }
+
+    @DataBoundSetter
+    public void setCheckInterval(int checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
     @Override
     public String prepareDockerImage(Docker docker, AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
         String expandedImage = build.getEnvironment(listener).expand(image);
-        if (!docker.hasImage(expandedImage)) {
-            listener.getLogger().println("Pull Docker image "+expandedImage+" from repository ...");
-            boolean pulled = docker.pullImage(expandedImage);
-            if (!pulled) {
-                listener.getLogger().println("Failed to pull Docker image "+expandedImage);
-                throw new IOException("Failed to pull Docker image "+expandedImage);
+
+        String node = build.getBuiltOnStr();
+        boolean present = docker.hasImage(expandedImage);
+
+        if (!present && pullPolicy == PullPolicy.NEVER) {
+            throw new IOException("Docker image "+expandedImage+" is not available on this node");
+        }
+        if (!isPullRequired(node, expandedImage, present)) {
+            return expandedImage;
+        }
+
+        String before = null;
+        if (present && pullPolicy == PullPolicy.CHECK_DIGEST) {
+            // docker pull only compares local digest with the registry manifest when image is up to date,
+            // layers are only downloaded if remote digest differs
+            listener.getLogger().println("Check Docker image "+expandedImage+" is up to date ...");
+            before = docker.getImageId(expandedImage);
+        }
+        pull(docker, expandedImage, listener);
+        if (pullPolicy == PullPolicy.CHECK_DIGEST) {
+            checked(node, expandedImage);
+            if (before != null && !before.equals(docker.getImageId(expandedImage))) {
+                listener.getLogger().println("Docker image "+expandedImage+" has been updated");
             }
         }
         return expandedImage;
     }
 
+    /**
+     * @return <code>true</code> if image has to be pulled on <code>node</code> according to pull policy
+     */
+    /* package */ boolean isPullRequired(String node, String expandedImage, boolean present) {
+        switch (pullPolicy) {
+            case NEVER:
+                return false;
+            case ALWAYS:
+                return true;
+            case CHECK_DIGEST:
+                return !present || isCheckRequired(node, expandedImage);
+            default:
+                return !present;
+        }
+    }
+
+    @Override
+    public boolean canPrepareBeforeCheckout(AbstractBuild build) {
+        // image name might rely on some variable contributed by SCM, i.e. $GIT_BRANCH
+        return !image.contains("$");
+    }
+
+    private void pull(Docker docker, String expandedImage, TaskListener listener) throws IOException, InterruptedException {
+        listener.getLogger().println("Pull Docker image "+expandedImage+" from repository ...");
+        try {
+            docker.pullImage(expandedImage);
+        } catch (IOException e) {
+            listener.getLogger().println(e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Check if image has not been checked for update on this node since {@link #checkInterval}.
+     */
+    private boolean isCheckRequired(String node, String expandedImage) {
+        synchronized (lastChecks) {
+            Long last = lastChecks.get(node + "@" + expandedImage);
+            return last == null || System.currentTimeMillis() - last >= TimeUnit.MINUTES.toMillis(checkInterval);
+        }
+    }
+
+    /**
+     * Record image has been successfully checked for update on this node, so a failed check is retried by next build.
+     */
+    /* package */ void checked(String node, String expandedImage) {
+        synchronized (lastChecks) {
+            lastChecks.put(node + "@" + expandedImage, System.currentTimeMillis());
+        }
+    }
+
     @Override
     public Collection<String> getDockerImagesUsedByJob(Job<?, ?> job) {
         return Collections.singleton(image);
     }
 
+    private Object readResolve() {
+        if (pullPolicy == null) pullPolicy = PullPolicy.IF_MISSING;
+        return this;
+    }
+
+    public enum PullPolicy {
+        NEVER("Never"),
+        IF_MISSING("If missing"),
+        ALWAYS("Always"),
+        CHECK_DIGEST("If updated");
+
+        private final String displayName;
+
+        PullPolicy(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<DockerImageSelector> {
 
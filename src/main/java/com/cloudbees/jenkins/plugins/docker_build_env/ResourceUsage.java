@@ -0,0 +1,289 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.Timer;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resources (CPU, memory, block I/O and network) used by build container, sampled periodically from container cgroup
+ * on slave.
+ */
+public class ResourceUsage {
+
+    private static final int INTERVAL = Integer.getInteger(ResourceUsage.class.getName()+".interval", 10);
+
+    /** Maximum number of samples recorded with build, so long running builds don't bloat <code>build.xml</code> */
+    private static final int MAX_SAMPLES = Integer.getInteger(ResourceUsage.class.getName()+".maxSamples", 360);
+
+    /** sampling interval, in seconds. Recorded samples get sparser once downsampled, see {@link Sample#getTimestamp()} */
+    private int interval = INTERVAL;
+
+    private final List<Sample> samples = new ArrayList<Sample>();
+
+    /** peaks are tracked as samples are collected, so they aren't lost when downsampling */
+    private long peakMemory;
+    private double peakCpu;
+
+    private transient ScheduledFuture<?> sampler;
+
+    /**
+     * Start sampling resources used by container process <code>pid</code>, on slave available through
+     * <code>channel</code>.
+     */
+    public synchronized void start(final VirtualChannel channel, final int pid) {
+        sampler = Timer.get().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    Sample sample = channel.call(new ReadCgroup(pid));
+                    if (sample != null) {
+                        add(sample);
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Failed to sample container resource usage", e);
+                }
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (sampler != null) {
+            sampler.cancel(false);
+            sampler = null;
+        }
+    }
+
+    /* package */ synchronized void add(Sample sample) {
+        peakMemory = Math.max(peakMemory, sample.memory);
+        if (!samples.isEmpty()) {
+            peakCpu = Math.max(peakCpu, cpu(samples.get(samples.size() - 1), sample));
+        }
+        samples.add(sample);
+        if (samples.size() > MAX_SAMPLES) {
+            downsample();
+        }
+    }
+
+    /**
+     * Halve resolution by dropping every other sample. Counters are cumulative, so first and last samples are kept to
+     * compute totals over the whole build. Peaks have already been recorded.
+     */
+    private void downsample() {
+        List<Sample> kept = new ArrayList<Sample>(samples.size() / 2 + 1);
+        for (int i = 0; i < samples.size(); i += 2) {
+            kept.add(samples.get(i));
+        }
+        Sample last = samples.get(samples.size() - 1);
+        if (kept.get(kept.size() - 1) != last) {
+            kept.add(last);
+        }
+        samples.clear();
+        samples.addAll(kept);
+    }
+
+    public synchronized List<Sample> getSamples() {
+        return new ArrayList<Sample>(samples);
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public synchronized boolean isEmpty() {
+        return samples.isEmpty();
+    }
+
+    /** @return peak memory usage, in bytes */
+    public synchronized long getPeakMemory() {
+        long peak = peakMemory;
+        // builds recorded before peaks were tracked
+        for (Sample s : samples) {
+            peak = Math.max(peak, s.memory);
+        }
+        return peak;
+    }
+
+    /** @return average memory usage, in bytes */
+    public synchronized long getAverageMemory() {
+        if (samples.isEmpty()) return 0;
+        long total = 0;
+        for (Sample s : samples) {
+            total += s.memory;
+        }
+        return total / samples.size();
+    }
+
+    /** @return average number of CPUs used */
+    public synchronized double getAverageCpu() {
+        if (samples.size() < 2) return 0;
+        Sample first = samples.get(0);
+        Sample last = samples.get(samples.size() - 1);
+        long elapsed = last.timestamp - first.timestamp;
+        return elapsed > 0 ? (double) (last.cpu - first.cpu) / TimeUnit.MILLISECONDS.toNanos(elapsed) : 0;
+    }
+
+    /** @return peak number of CPUs used between two samples */
+    public synchronized double getPeakCpu() {
+        double peak = peakCpu;
+        // builds recorded before peaks were tracked
+        for (int i = 1; i < samples.size(); i++) {
+            peak = Math.max(peak, cpu(samples.get(i - 1), samples.get(i)));
+        }
+        return peak;
+    }
+
+    /** @return average number of CPUs used between two samples */
+    private static double cpu(Sample a, Sample b) {
+        long elapsed = b.timestamp - a.timestamp;
+        return elapsed > 0 ? (double) (b.cpu - a.cpu) / TimeUnit.MILLISECONDS.toNanos(elapsed) : 0;
+    }
+
+    public String getFormattedAverageCpu() {
+        return String.format("%.2f", getAverageCpu());
+    }
+
+    public String getFormattedPeakCpu() {
+        return String.format("%.2f", getPeakCpu());
+    }
+
+    /** @return bytes read and written to block devices */
+    public synchronized long getBlockIO() {
+        return samples.isEmpty() ? 0 : samples.get(samples.size() - 1).blockIO - samples.get(0).blockIO;
+    }
+
+    /** @return bytes received and sent on network */
+    public synchronized long getNetworkIO() {
+        return samples.isEmpty() ? 0 : samples.get(samples.size() - 1).networkIO - samples.get(0).networkIO;
+    }
+
+    public static class Sample implements Serializable {
+        private final long timestamp;
+        /** cumulated CPU time, in nanoseconds */
+        private final long cpu;
+        private final long memory;
+        private final long blockIO;
+        private final long networkIO;
+
+        public Sample(long timestamp, long cpu, long memory, long blockIO, long networkIO) {
+            this.timestamp = timestamp;
+            this.cpu = cpu;
+            this.memory = memory;
+            this.blockIO = blockIO;
+            this.networkIO = networkIO;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getCpu() {
+            return cpu;
+        }
+
+        public long getMemory() {
+            return memory;
+        }
+
+        public long getBlockIO() {
+            return blockIO;
+        }
+
+        public long getNetworkIO() {
+            return networkIO;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Read container process cgroup counters, for both cgroup v1 and v2 hierarchies.
+     */
+    private static class ReadCgroup extends MasterToSlaveCallable<Sample, IOException> {
+        private final int pid;
+
+        private ReadCgroup(int pid) {
+            this.pid = pid;
+        }
+
+        public Sample call() throws IOException {
+            File cgroup = new File("/proc/" + pid + "/cgroup");
+            if (!cgroup.exists()) return null; // container has stopped, or is running on another host
+
+            // on hybrid hosts, v2 hierarchy is also listed but has no controller, counters are read from v1 ones
+            boolean unified = new File("/sys/fs/cgroup/cgroup.controllers").exists();
+
+            long cpu = 0, memory = 0, blockIO = 0;
+            for (String line : FileUtils.readLines(cgroup)) {
+                String[] parts = line.split(":", 3);
+                if (parts.length < 3) continue;
+                String controllers = parts[1];
+                String path = parts[2];
+                if (controllers.length() == 0) {
+                    if (!unified) continue;
+                    // cgroup v2 unified hierarchy
+                    File dir = new File("/sys/fs/cgroup" + path);
+                    cpu = readKey(new File(dir, "cpu.stat"), "usage_usec") * 1000;
+                    memory = readLong(new File(dir, "memory.current"));
+                    blockIO = readKey(new File(dir, "io.stat"), "rbytes") + readKey(new File(dir, "io.stat"), "wbytes");
+                } else if (controllers.contains("cpuacct")) {
+                    cpu = readLong(new File("/sys/fs/cgroup/" + controllers + path, "cpuacct.usage"));
+                } else if (controllers.equals("memory")) {
+                    memory = readLong(new File("/sys/fs/cgroup/memory" + path, "memory.usage_in_bytes"));
+                } else if (controllers.equals("blkio")) {
+                    blockIO = readKey(new File("/sys/fs/cgroup/blkio" + path, "blkio.throttle.io_service_bytes"), "Total");
+                }
+            }
+
+            long networkIO = 0;
+            File netdev = new File("/proc/" + pid + "/net/dev");
+            if (netdev.exists()) {
+                for (String line : FileUtils.readLines(netdev)) {
+                    int i = line.indexOf(':');
+                    if (i < 0 || line.substring(0, i).trim().equals("lo")) continue;
+                    String[] fields = line.substring(i + 1).trim().split("\\s+");
+                    if (fields.length > 8) {
+                        networkIO += Long.parseLong(fields[0]) + Long.parseLong(fields[8]);
+                    }
+                }
+            }
+            return new Sample(System.currentTimeMillis(), cpu, memory, blockIO, networkIO);
+        }
+
+        private static long readLong(File f) throws IOException {
+            if (!f.exists()) return 0;
+            String s = FileUtils.readFileToString(f).trim();
+            return s.matches("\\d+") ? Long.parseLong(s) : 0;
+        }
+
+        /**
+         * Sum values for <code>key</code>, from files using <code>key value</code> or <code>key=value</code> format.
+         */
+        private static long readKey(File f, String key) throws IOException {
+            if (!f.exists()) return 0;
+            long value = 0;
+            for (String line : FileUtils.readLines(f)) {
+                for (String token : line.split(" ")) {
+                    if (token.startsWith(key + "=")) {
+                        value += Long.parseLong(token.substring(key.length() + 1));
+                    }
+                }
+                if (line.startsWith(key + " ")) {
+                    value += Long.parseLong(line.substring(key.length() + 1).trim());
+                }
+            }
+            return value;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ResourceUsage.class.getName());
+}
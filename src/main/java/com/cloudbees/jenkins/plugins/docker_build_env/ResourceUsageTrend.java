@@ -0,0 +1,63 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Show resources used by build containers across last builds of a job, to help sizing executors and limits.
+ */
+public class ResourceUsageTrend implements Action {
+
+    private static final int MAX_BUILDS = 10;
+
+    private final AbstractProject<?, ?> job;
+
+    public ResourceUsageTrend(AbstractProject<?, ?> job) {
+        this.job = job;
+    }
+
+    public List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (AbstractBuild<?, ?> build : job.getBuilds().limit(MAX_BUILDS)) {
+            BuiltInContainer c = build.getAction(BuiltInContainer.class);
+            if (c != null && c.getUsage() != null && !c.getUsage().isEmpty()) {
+                entries.add(new Entry(build, c.getUsage()));
+            }
+        }
+        return entries;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Docker container resource usage";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    public static class Entry {
+        private final AbstractBuild<?, ?> build;
+        private final ResourceUsage usage;
+
+        private Entry(AbstractBuild<?, ?> build, ResourceUsage usage) {
+            this.build = build;
+            this.usage = usage;
+        }
+
+        public AbstractBuild<?, ?> getBuild() {
+            return build;
+        }
+
+        public ResourceUsage getUsage() {
+            return usage;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A service container (database, message broker, ...) started with the build container, and reachable from build
+ * by its alias.
+ */
+public class SidecarContainer extends AbstractDescribableImpl<SidecarContainer> {
+
+    private final String image;
+    private final String alias;
+    private final String command;
+    private final int readinessPort;
+    private final String readinessCommand;
+    private final int readinessTimeout;
+
+    @DataBoundConstructor
+    public SidecarContainer(String image, String alias, String command, int readinessPort, String readinessCommand, int readinessTimeout) {
+        this.image = image;
+        this.alias = alias;
+        this.command = Util.fixEmptyAndTrim(command);
+        this.readinessPort = readinessPort;
+        this.readinessCommand = Util.fixEmptyAndTrim(readinessCommand);
+        this.readinessTimeout = readinessTimeout > 0 ? readinessTimeout : 60;
+    }
+
+    public String getImage() {
+        return image;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public int getReadinessPort() {
+        return readinessPort;
+    }
+
+    public String getReadinessCommand() {
+        return readinessCommand;
+    }
+
+    public int getReadinessTimeout() {
+        return readinessTimeout;
+    }
+
+    /**
+     * Start container, attached to build network.
+     * @return container ID
+     */
+    public String start(Docker docker, String network, TaskListener listener) throws IOException, InterruptedException {
+        if (!docker.hasImage(image)) {
+            listener.getLogger().println("Pull Docker image "+image+" from repository ...");
+            docker.pullImage(image);
+        }
+        String[] args = command != null ? command.split(" ") : new String[0];
+        return docker.runSidecar(image, network, alias, args);
+    }
+
+    /**
+     * Wait for service to be ready, as reported by TCP port and/or command probes.
+     */
+    public void waitUntilReady(Docker docker, String container, TaskListener listener) throws IOException, InterruptedException {
+        if (readinessPort <= 0 && readinessCommand == null) return;
+
+        String ip = readinessPort > 0 ? docker.getContainerIp(container) : null;
+        VirtualChannel channel = docker.getLauncher().getChannel();
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(readinessTimeout);
+        while (true) {
+            boolean ready = true;
+            if (readinessPort > 0) {
+                ready = ip != null && channel.call(new TcpProbe(ip, readinessPort));
+            }
+            if (ready && readinessCommand != null) {
+                ready = docker.execQuietly(container, readinessCommand);
+            }
+            if (ready) {
+                listener.getLogger().println("Service " + alias + " is ready");
+                return;
+            }
+            if (System.currentTimeMillis() > timeout) {
+                throw new IOException("Service " + alias + " not ready after " + readinessTimeout + " seconds");
+            }
+            Thread.sleep(1000);
+        }
+    }
+
+    private static class TcpProbe extends MasterToSlaveCallable<Boolean, IOException> {
+        private final String host;
+        private final int port;
+
+        private TcpProbe(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public Boolean call() {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), 1000);
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<SidecarContainer> {
+
+        @Override
+        public String getDisplayName() {
+            return "Service container";
+        }
+    }
+}
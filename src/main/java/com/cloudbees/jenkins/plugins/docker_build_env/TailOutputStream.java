@@ -0,0 +1,70 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Capture docker command output in a fixed size ring buffer, so memory is bounded whatever the command outputs, but
+ * we still can report the last lines when command fails.
+ */
+public class TailOutputStream extends OutputStream {
+
+    private static final int SIZE = Integer.getInteger(TailOutputStream.class.getName()+".size", 16 * 1024);
+
+    private final byte[] buffer;
+    private int pos;
+    private boolean full;
+
+    public TailOutputStream() {
+        this(SIZE);
+    }
+
+    public TailOutputStream(int size) {
+        this.buffer = new byte[size];
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        buffer[pos++] = (byte) b;
+        if (pos == buffer.length) {
+            pos = 0;
+            full = true;
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (len >= buffer.length) {
+            // only the end of this chunk will fit
+            System.arraycopy(b, off + len - buffer.length, buffer, 0, buffer.length);
+            pos = 0;
+            full = true;
+            return;
+        }
+        int n = Math.min(len, buffer.length - pos);
+        System.arraycopy(b, off, buffer, pos, n);
+        System.arraycopy(b, off + n, buffer, 0, len - n);
+        if (pos + len >= buffer.length) {
+            full = true;
+        }
+        pos = (pos + len) % buffer.length;
+    }
+
+    /**
+     * @return captured output, limited to the last bytes written
+     */
+    @Override
+    public synchronized String toString() {
+        try {
+            if (!full) {
+                return new String(buffer, 0, pos, "UTF-8");
+            }
+            byte[] tail = new byte[buffer.length];
+            System.arraycopy(buffer, pos, tail, 0, buffer.length - pos);
+            System.arraycopy(buffer, 0, tail, buffer.length - pos, pos);
+            return "[...]" + new String(tail, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * In-memory scratch area mounted inside build container, for I/O intensive temporary files.
+ */
+public class TmpfsMount extends AbstractDescribableImpl<TmpfsMount> {
+
+    private final String path;
+    private final String size;
+
+    @DataBoundConstructor
+    public TmpfsMount(String path, String size) {
+        this.path = path;
+        this.size = Util.fixEmptyAndTrim(size);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return size cap using docker syntax (i.e. <code>512m</code>), <code>null</code> for docker default
+     */
+    public String getSize() {
+        return size;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<TmpfsMount> {
+
+        @Override
+        public String getDisplayName() {
+            return "tmpfs";
+        }
+    }
+}
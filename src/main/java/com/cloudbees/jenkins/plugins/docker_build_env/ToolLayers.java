@@ -0,0 +1,170 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.JDK;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Builder;
+import hudson.tasks.Maven;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bake tool installations a job relies on into derived image layers, so build container don't need slave root to be
+ * bind mounted, and tools are read from docker local storage. Tools are copied at the same path they're installed on
+ * slave, so environment set by tool installations (<code>JAVA_HOME</code>, <code>PATH</code>) is still valid inside
+ * container.
+ * <p>
+ * A layer is created per tool on top of the previous one and tagged by a hash of parent image, tool name, home and
+ * installed version, so jobs using the same tools share layers, and a tool update only invalidates the layers above it.
+ * Layers in excess or baked more than {@link #MAX_AGE} days ago are removed, and baked again when needed. Layers other
+ * ones are based on are only removed once they're no longer a parent, as other jobs' layers still rely on them.
+ */
+public class ToolLayers {
+
+    private static final String REPOSITORY = "jenkins-tools";
+
+    private static final int MAX_LAYERS = Integer.getInteger(ToolLayers.class.getName()+".maxLayers", 50);
+
+    /** maximum age of a layer, in days, before it is baked again */
+    private static final int MAX_AGE = Integer.getInteger(ToolLayers.class.getName()+".maxAge", 7);
+
+    /**
+     * @return image with tools used by build installed on top of <code>image</code>
+     */
+    public static String bake(Docker docker, AbstractBuild build, String image, TaskListener listener) throws IOException, InterruptedException {
+        Node node = build.getBuiltOn();
+        String parent = image;
+        List<String> layers = new ArrayList<String>();
+        for (Map.Entry<String, String> tool : getTools(build, node, listener).entrySet()) {
+            FilePath home = node.createPath(tool.getValue());
+            if (home == null || !home.isDirectory()) {
+                listener.getLogger().println("Tool " + tool.getKey() + " isn't installed on this node, not baked into image");
+                continue;
+            }
+
+            String tag = REPOSITORY + ":" + Util.getDigestOf(docker.getImageId(parent) + "|" + tool.getKey()
+                    + "|" + home.getRemote() + "|" + home.act(new GetInstalledVersion()));
+            if (!docker.hasImage(tag)) {
+                listener.getLogger().println("Bake tool " + tool.getKey() + " into Docker image " + tag);
+                String container = docker.createContainer(parent);
+                try {
+                    docker.copyInto(container, home.getRemote());
+                    docker.commit(container, parent, tag);
+                } finally {
+                    docker.removeContainer(container);
+                }
+            }
+            parent = tag;
+            layers.add(tag);
+        }
+
+        Set<String> keep = new HashSet<String>(layers);
+        keep.addAll(getParents(docker));
+        for (String removed : docker.pruneTags(REPOSITORY, MAX_LAYERS, MAX_AGE, keep)) {
+            listener.getLogger().println("Removed tool layer " + removed);
+        }
+        return parent;
+    }
+
+    private static Set<String> getParents(Docker docker) throws IOException, InterruptedException {
+        Map<String, String> imageIds = new HashMap<String, String>();
+        Map<String, String> parentIds = new HashMap<String, String>();
+        for (String tag : docker.listTags(REPOSITORY)) {
+            String layer = REPOSITORY + ":" + tag;
+            String id = docker.getImageId(layer);
+            if (id == null) continue;
+            imageIds.put(layer, id);
+            parentIds.put(layer, docker.getImageParent(layer));
+        }
+        return getParents(imageIds, parentIds);
+    }
+
+    /**
+     * @return layers another layer has been baked on top of. Removing them would only untag the image, and layers
+     * above would then be baked again as parent image ID changed.
+     */
+    /* package */ static Set<String> getParents(Map<String, String> imageIds, Map<String, String> parentIds) {
+        Set<String> parents = new HashSet<String>(parentIds.values());
+        Set<String> layers = new HashSet<String>();
+        for (Map.Entry<String, String> e : imageIds.entrySet()) {
+            if (parents.contains(e.getValue())) layers.add(e.getKey());
+        }
+        return layers;
+    }
+
+    /**
+     * @return home directory on node of the tools used by build, indexed by tool name
+     */
+    private static Map<String, String> getTools(AbstractBuild build, Node node, TaskListener listener) throws IOException, InterruptedException {
+        Map<String, String> tools = new LinkedHashMap<String, String>();
+        EnvVars env = build.getEnvironment(listener);
+        AbstractProject project = build.getProject();
+
+        JDK jdk = project.getJDK();
+        if (jdk != null) {
+            jdk = jdk.forNode(node, listener).forEnvironment(env);
+            tools.put("jdk-" + jdk.getName(), jdk.getHome());
+        }
+
+        if (project instanceof Project) {
+            for (Builder builder : ((Project<?, ?>) project).getBuilders()) {
+                if (builder instanceof Maven) {
+                    Maven.MavenInstallation maven = ((Maven) builder).getMaven();
+                    if (maven != null) {
+                        maven = maven.forNode(node, listener).forEnvironment(env);
+                        tools.put("maven-" + maven.getName(), maven.getHome());
+                    }
+                }
+            }
+        }
+        return tools;
+    }
+
+    /**
+     * Identify the version installed in a tool home, from the markers tool installers write in it, or the JDK
+     * <code>release</code> file. Tools installed manually without such a file are identified by their binaries and
+     * libraries names and sizes.
+     */
+    /* package */ static class GetInstalledVersion extends MasterToSlaveFileCallable<String> {
+        private static final String[] MARKERS = { ".installedFrom", ".timestamp", ".installedByHudson", "release" };
+
+        public String invoke(File home, VirtualChannel channel) throws IOException, InterruptedException {
+            StringBuilder s = new StringBuilder();
+            for (String marker : MARKERS) {
+                File f = new File(home, marker);
+                if (f.isFile()) {
+                    s.append(marker).append('=').append(FileUtils.readFileToString(f)).append('\n');
+                }
+            }
+            if (s.length() == 0) {
+                for (String dir : new String[] { "bin", "lib" }) {
+                    File[] files = new File(home, dir).listFiles();
+                    if (files == null) continue;
+                    Arrays.sort(files);
+                    for (File f : files) {
+                        s.append(dir).append('/').append(f.getName()).append('=').append(f.length()).append('\n');
+                    }
+                }
+            }
+            return Util.getDigestOf(s.toString());
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.io.Archiver;
+import hudson.util.io.ArchiverFactory;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Synchronize workspace with a docker data volume, for docker daemons which don't share slave filesystem so can't
+ * bind mount workspace. Synchronization is incremental : a manifest of files already sent to the volume (size,
+ * timestamp and hash) is maintained on slave, so only changed files are sent as a tar stream. Files deleted on one side
+ * are deleted on the other one as well.
+ * <p>
+ * Symbolic links are not synchronized.
+ */
+public class WorkspaceSync {
+
+    /** Marker created inside container after initial synchronization, to detect files created or updated by build */
+    private static final String STAMP = "/tmp/.jenkins-sync-stamp";
+
+    private final Docker docker;
+    private final FilePath workspace;
+    private final FilePath manifest;
+    private final FilePath tarball;
+    /** NUL separated list of paths, to be sent to / retrieved from container */
+    private final FilePath paths;
+    private final String volume;
+    private final String userId;
+    private final TaskListener listener;
+    private boolean fresh;
+
+    public WorkspaceSync(Docker docker, FilePath workspace, String node, String userId, TaskListener listener) throws IOException, InterruptedException {
+        this.docker = docker;
+        this.workspace = workspace;
+        this.userId = userId;
+        this.listener = listener;
+        this.volume = "jenkins-" + Util.getDigestOf(node + ":" + workspace.getRemote()).substring(0, 16);
+
+        FilePath tmp = workspace.sibling(workspace.getName() + "@tmp");
+        tmp.mkdirs();
+        this.manifest = tmp.child("docker-sync.properties");
+        this.tarball = tmp.child("docker-sync.tar");
+        this.paths = tmp.child("docker-sync.paths");
+    }
+
+    /**
+     * @return data volume dedicated to this workspace, to be mounted inside build container
+     */
+    public String getVolume() {
+        return volume;
+    }
+
+    /**
+     * Create data volume if it doesn't exist yet. Manifest is then obsolete.
+     */
+    public void prepareVolume() throws IOException, InterruptedException {
+        fresh = docker.createVolume(volume);
+        if (fresh) {
+            manifest.delete();
+        }
+    }
+
+    /**
+     * Initial synchronization, once build container has been started with data volume mounted as workspace.
+     */
+    public void init(String container) throws IOException, InterruptedException {
+        if (fresh) {
+            // volume is created owned by root
+            exec(container, "0", "chown " + userId + " \"$1\"", workspace.getRemote());
+        }
+        push(container);
+        exec(container, userId, "touch " + STAMP);
+    }
+
+    /**
+     * Send files changed in workspace since last synchronization to data volume, and remove deleted ones.
+     */
+    public synchronized void push(String container) throws IOException, InterruptedException {
+        Changes changes = workspace.act(new ComputeChanges(manifest.getRemote(), tarball.getRemote(), paths.getRemote()));
+        FilePath updated = manifest.sibling(manifest.getName() + ".new");
+        try {
+            if (changes.changed > 0) {
+                ArgumentListBuilder args = docker.dockerCommand()
+                        .add("exec", "--interactive", "--user", userId, container)
+                        .add("sh", "-c", "cd \"$1\" && tar -x -f -", "sh", workspace.getRemote());
+                pipe(args, tarball, Pipe.STDIN);
+            }
+            if (!changes.deleted.isEmpty()) {
+                // paths are read from stdin, as a large deletion would exceed command line length limit
+                ArgumentListBuilder args = docker.dockerCommand()
+                        .add("exec", "--interactive", "--user", userId, container)
+                        .add("sh", "-c", "cd \"$1\" && xargs -0 rm -f --", "sh", workspace.getRemote());
+                pipe(args, paths, Pipe.STDIN);
+            }
+        } finally {
+            tarball.delete();
+            paths.delete();
+        }
+        updated.renameTo(manifest);
+        if (!changes.isEmpty()) {
+            listener.getLogger().println("Synchronized " + changes.changed + " file(s) to docker volume " + volume
+                    + (changes.deleted.isEmpty() ? "" : " (" + changes.deleted.size() + " removed)"));
+        }
+    }
+
+    /**
+     * Retrieve files created or updated inside container by build, and remove from workspace the ones build deleted.
+     */
+    public synchronized void pull(String container) throws IOException, InterruptedException {
+        ArgumentListBuilder args = docker.dockerCommand()
+                .add("exec", "--user", userId, container)
+                .add("sh", "-c", "cd \"$1\" && find . -type f -newer " + STAMP + " | tar -c -f - -T -")
+                .add("sh", workspace.getRemote());
+        ArgumentListBuilder list = docker.dockerCommand()
+                .add("exec", "--user", userId, container)
+                .add("sh", "-c", "cd \"$1\" && find . -type f -print0", "sh", workspace.getRemote());
+        try {
+            pipe(args, tarball, Pipe.STDOUT);
+            pipe(list, paths, Pipe.STDOUT);
+            tarball.untar(workspace, FilePath.TarCompression.NONE);
+            int removed = workspace.act(new RemoveDeleted(manifest.getRemote(), paths.getRemote()));
+            if (removed > 0) {
+                listener.getLogger().println("Removed " + removed + " file(s) deleted from docker volume " + volume);
+            }
+        } finally {
+            tarball.delete();
+            paths.delete();
+        }
+
+        // record retrieved files, so they are not sent back on next build
+        workspace.act(new ComputeChanges(manifest.getRemote(), null, null));
+    }
+
+    private void pipe(ArgumentListBuilder args, FilePath file, int mode) throws IOException, InterruptedException {
+        int status = file.act(new Pipe(args.toList(), docker.getEnvVars(), listener, mode));
+        if (status != 0) {
+            throw new IOException("Failed to synchronize workspace with docker volume " + volume);
+        }
+    }
+
+    private void exec(String container, String user, String script, String... args) throws IOException, InterruptedException {
+        ArgumentListBuilder cmd = docker.dockerCommand()
+                .add("exec", "--user", user, container)
+                .add("sh", "-c", script, "sh").add(args);
+        int status = workspace.act(new Pipe(cmd.toList(), docker.getEnvVars(), listener, Pipe.NONE));
+        if (status != 0) {
+            throw new IOException("Failed to prepare docker volume " + volume);
+        }
+    }
+
+    /* package */ static class Changes implements Serializable {
+        /* package */ final int changed;
+        /* package */ final List<String> deleted;
+
+        private Changes(int changed, List<String> deleted) {
+            this.changed = changed;
+            this.deleted = deleted;
+        }
+
+        /* package */ boolean isEmpty() {
+            return changed == 0 && deleted.isEmpty();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Compare workspace with manifest, to produce a tarball of changed files and a NUL separated list of deleted ones.
+     * Each is only written if not empty. Updated manifest is written to a <code>.new</code> file, to be committed once
+     * synchronization succeeded. Without tarball, manifest is directly updated.
+     */
+    /* package */ static class ComputeChanges extends MasterToSlaveFileCallable<Changes> {
+        private final String manifest;
+        private final String tarball;
+        private final String deletions;
+
+        /* package */ ComputeChanges(String manifest, String tarball, String deletions) {
+            this.manifest = manifest;
+            this.tarball = tarball;
+            this.deletions = deletions;
+        }
+
+        public Changes invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            Properties previous = load(manifest);
+            Properties current = new Properties();
+            List<String> changed = new ArrayList<String>();
+            scan(ws, "", previous, current, changed);
+
+            List<String> deleted = new ArrayList<String>();
+            Set<String> existing = new HashSet<String>(current.stringPropertyNames());
+            for (String path : previous.stringPropertyNames()) {
+                if (!existing.contains(path)) deleted.add(path);
+            }
+
+            if (tarball != null && !changed.isEmpty()) {
+                Archiver archiver = ArchiverFactory.TAR.create(new FileOutputStream(tarball));
+                try {
+                    for (String path : changed) {
+                        archiver.visit(new File(ws, path), path);
+                    }
+                } finally {
+                    archiver.close();
+                }
+            }
+            if (deletions != null && !deleted.isEmpty()) {
+                OutputStream out = new FileOutputStream(deletions);
+                try {
+                    for (String path : deleted) {
+                        out.write(path.getBytes("UTF-8"));
+                        out.write(0);
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+
+            OutputStream out = new FileOutputStream(tarball != null ? manifest + ".new" : manifest);
+            try {
+                current.store(out, null);
+            } finally {
+                out.close();
+            }
+            return new Changes(changed.size(), deleted);
+        }
+
+        private void scan(File dir, String prefix, Properties previous, Properties current, List<String> changed) throws IOException, InterruptedException {
+            File[] files = dir.listFiles();
+            if (files == null) return;
+            for (File f : files) {
+                if (Util.isSymlink(f)) continue;
+                String path = prefix + f.getName();
+                if (f.isDirectory()) {
+                    scan(f, path + "/", previous, current, changed);
+                    continue;
+                }
+
+                String entry = previous.getProperty(path);
+                String signature = f.length() + ":" + f.lastModified() + ":";
+                String hash;
+                if (entry != null && entry.startsWith(signature)) {
+                    hash = entry.substring(signature.length());
+                } else {
+                    // file has been touched, but content might not have changed
+                    InputStream in = new FileInputStream(f);
+                    try {
+                        hash = Util.getDigestOf(in);
+                    } finally {
+                        in.close();
+                    }
+                    if (entry == null || !entry.endsWith(":" + hash)) {
+                        changed.add(path);
+                    }
+                }
+                current.setProperty(path, signature + hash);
+            }
+        }
+    }
+
+    /**
+     * Remove from workspace files recorded in manifest, but not listed in the NUL separated list of files found in
+     * data volume, as build deleted them.
+     * @return number of files removed
+     */
+    /* package */ static class RemoveDeleted extends MasterToSlaveFileCallable<Integer> {
+        private final String manifest;
+        private final String listing;
+
+        /* package */ RemoveDeleted(String manifest, String listing) {
+            this.manifest = manifest;
+            this.listing = listing;
+        }
+
+        public Integer invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            Set<String> existing = new HashSet<String>();
+            for (String path : FileUtils.readFileToString(new File(listing), "UTF-8").split("\0")) {
+                if (path.startsWith("./")) path = path.substring(2);
+                if (path.length() > 0) existing.add(path);
+            }
+
+            int removed = 0;
+            for (String path : load(manifest).stringPropertyNames()) {
+                if (!existing.contains(path) && new File(ws, path).delete()) {
+                    removed++;
+                }
+            }
+            return removed;
+        }
+    }
+
+    private static Properties load(String manifest) throws IOException {
+        Properties properties = new Properties();
+        File m = new File(manifest);
+        if (m.exists()) {
+            InputStream in = new FileInputStream(m);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Run docker command line on slave, piping a local file as stdin or collecting stdout in a local file, so the
+     * data doesn't transit through master.
+     */
+    private static class Pipe extends MasterToSlaveFileCallable<Integer> {
+        private static final int NONE = 0;
+        private static final int STDIN = 1;
+        private static final int STDOUT = 2;
+
+        private final List<String> cmds;
+        private final Map<String, String> envs;
+        private final TaskListener listener;
+        private final int mode;
+
+        private Pipe(List<String> cmds, Map<String, String> envs, TaskListener listener, int mode) {
+            this.cmds = cmds;
+            this.envs = envs;
+            this.listener = listener;
+            this.mode = mode;
+        }
+
+        public Integer invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            Launcher.ProcStarter starter = new Launcher.LocalLauncher(listener).launch()
+                    .cmds(cmds).envs(envs).stderr(listener.getLogger()).quiet(true);
+            switch (mode) {
+                case STDIN:
+                    InputStream in = new FileInputStream(f);
+                    try {
+                        return starter.stdin(in).stdout(listener).join();
+                    } finally {
+                        in.close();
+                    }
+                case STDOUT:
+                    OutputStream out = new FileOutputStream(f);
+                    try {
+                        return starter.stdout(out).join();
+                    } finally {
+                        out.close();
+                    }
+                default:
+                    return starter.stdout(listener).join();
+            }
+        }
+    }
+}
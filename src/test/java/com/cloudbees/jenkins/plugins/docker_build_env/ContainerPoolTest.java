@@ -0,0 +1,94 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ContainerPoolTest {
+
+    @After
+    public void clearPool() {
+        for (String key : new String[] {"expired", "a", "b", "c"}) {
+            ContainerPool.take(key);
+        }
+    }
+
+    private static ContainerPool.Parked parked(String node, String container, int timeout) {
+        return new ContainerPool.Parked(node, container, null, null, timeout);
+    }
+
+    @Test
+    public void key_does_not_depend_on_map_ordering() {
+        Map<String, String> volumes = new HashMap<String, String>();
+        volumes.put("/home/jenkins", "/home/jenkins");
+        volumes.put("/tmp", "/tmp");
+        Map<String, String> sorted = new TreeMap<String, String>(Collections.reverseOrder());
+        sorted.putAll(volumes);
+
+        assertEquals(ContainerPool.key("job", "node", volumes, false),
+                ContainerPool.key("job", "node", sorted, false));
+    }
+
+    @Test
+    public void key_depends_on_all_parts() {
+        String key = ContainerPool.key("job", "node", "sha256:1234", false, "1000:1000");
+        assertFalse(key.equals(ContainerPool.key("other", "node", "sha256:1234", false, "1000:1000")));
+        assertFalse(key.equals(ContainerPool.key("job", "other", "sha256:1234", false, "1000:1000")));
+        assertFalse(key.equals(ContainerPool.key("job", "node", "sha256:5678", false, "1000:1000")));
+        assertFalse(key.equals(ContainerPool.key("job", "node", "sha256:1234", true, "1000:1000")));
+        assertFalse(key.equals(ContainerPool.key("job", "node", "sha256:1234", false, "0:0")));
+        assertFalse(key.equals(ContainerPool.key("job", "node", "sha256:1234", false, null)));
+    }
+
+    @Test
+    public void take_a_container_only_once() {
+        ContainerPool.Parked p = parked("node", "a", 30);
+        ContainerPool.park("a", p);
+        assertSame(p, ContainerPool.take("a"));
+        assertNull(ContainerPool.take("a"));
+    }
+
+    @Test
+    public void take_expired_containers_and_group_others_by_node() throws Exception {
+        ContainerPool.Parked expired = parked("node1", "expired", 0);
+        ContainerPool.Parked a = parked("node1", "a", 30);
+        ContainerPool.Parked b = parked("node2", "b", 30);
+        ContainerPool.park("expired", expired);
+        ContainerPool.park("a", a);
+        ContainerPool.park("b", b);
+        Thread.sleep(10);
+
+        Map<String, List<ContainerPool.Parked>> byNode = new HashMap<String, List<ContainerPool.Parked>>();
+        List<ContainerPool.Parked> evicted = ContainerPool.takeExpired(byNode);
+
+        assertEquals(Collections.singletonList(expired), evicted);
+        assertNull(ContainerPool.take("expired"));
+        assertEquals(Collections.singletonList(a), byNode.get("node1"));
+        assertEquals(Collections.singletonList(b), byNode.get("node2"));
+        // containers not expired are kept in pool
+        assertSame(a, ContainerPool.take("a"));
+    }
+
+    @Test
+    public void select_oldest_container_under_memory_pressure() throws Exception {
+        ContainerPool.Parked a = parked("node", "a", 30);
+        Thread.sleep(10);
+        ContainerPool.Parked b = parked("node", "b", 30);
+        Thread.sleep(10);
+        ContainerPool.Parked c = parked("node", "c", 30);
+
+        assertSame(a, ContainerPool.oldest(Arrays.asList(b, a, c)));
+        assertSame(b, ContainerPool.oldest(Arrays.asList(c, b)));
+    }
+}
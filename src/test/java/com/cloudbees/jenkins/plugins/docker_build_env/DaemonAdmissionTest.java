@@ -0,0 +1,94 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.model.TaskListener;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class DaemonAdmissionTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void interruptWaitingThreads() {
+        executor.shutdownNow();
+    }
+
+    private Future<DaemonAdmission.Permit> acquireLater(final String daemon, final DockerReport report) {
+        return executor.submit(new Callable<DaemonAdmission.Permit>() {
+            public DaemonAdmission.Permit call() throws Exception {
+                return DaemonAdmission.acquire(daemon, DaemonAdmission.Operation.BUILD, TaskListener.NULL, report);
+            }
+        });
+    }
+
+    private static void assertBlocked(Future<?> f) throws Exception {
+        try {
+            f.get(200, TimeUnit.MILLISECONDS);
+            fail("permit should not be available");
+        } catch (TimeoutException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void wait_for_a_slot_once_limit_reached() throws Exception {
+        DockerReport report = new DockerReport();
+        DaemonAdmission.Permit a = DaemonAdmission.acquire("wait", DaemonAdmission.Operation.BUILD, TaskListener.NULL, report);
+        DaemonAdmission.acquire("wait", DaemonAdmission.Operation.BUILD, TaskListener.NULL, report);
+        assertEquals(0, report.getWaits().size());
+
+        Future<DaemonAdmission.Permit> c = acquireLater("wait", report);
+        assertBlocked(c);
+        assertFalse(c.isDone());
+
+        a.release();
+        c.get(1, TimeUnit.SECONDS);
+        assertEquals(1, report.getWaits().size());
+        assertEquals("build", report.getWaits().get(0).getOperation());
+    }
+
+    @Test
+    public void release_a_permit_only_once() throws Exception {
+        DockerReport report = new DockerReport();
+        DaemonAdmission.Permit a = DaemonAdmission.acquire("release", DaemonAdmission.Operation.BUILD, TaskListener.NULL, report);
+        DaemonAdmission.acquire("release", DaemonAdmission.Operation.BUILD, TaskListener.NULL, report);
+        a.release();
+        a.release();
+
+        DaemonAdmission.acquire("release", DaemonAdmission.Operation.BUILD, TaskListener.NULL, report);
+        assertBlocked(acquireLater("release", report));
+    }
+
+    @Test
+    public void daemons_and_operations_have_distinct_slots() throws Exception {
+        DockerReport report = new DockerReport();
+        DaemonAdmission.acquire("distinct", DaemonAdmission.Operation.BUILD, TaskListener.NULL, report);
+        DaemonAdmission.acquire("distinct", DaemonAdmission.Operation.BUILD, TaskListener.NULL, report);
+
+        DaemonAdmission.acquire("distinct", DaemonAdmission.Operation.PULL, TaskListener.NULL, report);
+        DaemonAdmission.acquire("other", DaemonAdmission.Operation.BUILD, TaskListener.NULL, report);
+        assertEquals(0, report.getWaits().size());
+    }
+
+    @Test
+    public void local_daemons_are_distinct_per_node() {
+        assertEquals("master", Docker.daemon("", null));
+        assertEquals("agent1", Docker.daemon("agent1", null));
+        assertEquals("agent1@unix:///var/run/docker.sock", Docker.daemon("agent1", "unix:///var/run/docker.sock"));
+        assertEquals("agent2@tcp://localhost:2375", Docker.daemon("agent2", "tcp://localhost:2375"));
+        assertEquals("agent2@tcp://127.0.0.1:2375", Docker.daemon("agent2", "tcp://127.0.0.1:2375"));
+        assertEquals("tcp://docker.example.com:2376", Docker.daemon("agent1", "tcp://docker.example.com:2376"));
+        assertEquals("tcp://docker.example.com:2376", Docker.daemon("agent2", "tcp://docker.example.com:2376"));
+    }
+}
@@ -0,0 +1,79 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class DependencySnapshotTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void repository_components_match_docker_grammar() {
+        assertEquals("my-job", DependencySnapshot.normalize("My Job"));
+        assertEquals("folder/my-job", DependencySnapshot.normalize("Folder/My Job"));
+        assertEquals("job", DependencySnapshot.normalize("job-"));
+        assertEquals("job", DependencySnapshot.normalize("_job"));
+        assertEquals("a-b", DependencySnapshot.normalize("a - b"));
+        assertEquals("a-b", DependencySnapshot.normalize("a._b"));
+        assertEquals("release-1.0", DependencySnapshot.normalize("release-1.0"));
+        assertEquals("folder/job", DependencySnapshot.normalize("Folder/(()"));
+    }
+
+    private String hash(File ws, String includes) throws Exception {
+        return new DependencySnapshot.HashManifests(includes).invoke(ws, null);
+    }
+
+    @Test
+    public void snapshot_hash_depends_on_manifests_content_and_path() throws Exception {
+        File ws = tmp.newFolder("ws");
+        assertNull(hash(ws, "**/pom.xml"));
+
+        FileUtils.writeStringToFile(new File(ws, "pom.xml"), "<project/>");
+        FileUtils.writeStringToFile(new File(ws, "module/pom.xml"), "<project/>");
+        FileUtils.writeStringToFile(new File(ws, "src/Main.java"), "class Main {}");
+        String hash = hash(ws, "**/pom.xml");
+
+        // other files don't change hash
+        FileUtils.writeStringToFile(new File(ws, "src/Main.java"), "class Main { }");
+        assertEquals(hash, hash(ws, "**/pom.xml"));
+
+        FileUtils.writeStringToFile(new File(ws, "module/pom.xml"), "<project><dependencies/></project>");
+        String updated = hash(ws, "**/pom.xml");
+        assertFalse(hash.equals(updated));
+
+        new File(ws, "module/pom.xml").renameTo(new File(ws, "other/pom.xml"));
+        assertFalse(updated.equals(hash(ws, "**/pom.xml")));
+    }
+
+    @Test
+    public void prune_snapshots_in_excess_or_too_old() {
+        long now = TimeUnit.DAYS.toMillis(100);
+        Map<String, Long> created = new HashMap<String, Long>();
+        created.put("jenkins-deps/job:a", now - TimeUnit.HOURS.toMillis(1));
+        created.put("jenkins-deps/job:b", now - TimeUnit.HOURS.toMillis(2));
+        created.put("jenkins-deps/job:c", now - TimeUnit.HOURS.toMillis(3));
+        created.put("jenkins-deps/job:d", now - TimeUnit.DAYS.toMillis(8));
+
+        assertEquals(Arrays.asList("jenkins-deps/job:c", "jenkins-deps/job:d"),
+                Docker.getPrunable(created, 2, 7, Collections.<String>emptySet(), now));
+        assertEquals(Arrays.asList("jenkins-deps/job:d"),
+                Docker.getPrunable(created, 3, 7, Collections.<String>emptySet(), now));
+        // snapshot just committed is kept whatever its rank
+        assertEquals(Arrays.asList("jenkins-deps/job:c"),
+                Docker.getPrunable(created, 2, 7, Collections.singleton("jenkins-deps/job:d"), now));
+    }
+}
@@ -0,0 +1,68 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DockerOutputParserTest {
+
+    @Test
+    public void parse_build_steps() throws Exception {
+        String output =
+            "Sending build context to Docker daemon 2.048 kB\n" +
+            "Step 1/3 : FROM ubuntu:14.04\n" +
+            " ---> 8f1bd21bd25c\n" +
+            "Step 2/3 : RUN apt-get update\n" +
+            " ---> Using cache\n" +
+            " ---> 2d3c9c6f5b1e\n" +
+            "Step 3 : COPY . /src\n" +
+            " ---> 5f2b4f8a7c1d\n" +
+            "Successfully built 5f2b4f8a7c1d\n";
+
+        DockerReport report = new DockerReport();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DockerBuildOutputParser parser = new DockerBuildOutputParser(log, report);
+        parser.write(output.getBytes("UTF-8"));
+        parser.finish();
+
+        assertEquals(output, log.toString("UTF-8"));
+        List<DockerReport.BuildStep> steps = report.getBuildSteps();
+        assertEquals(3, steps.size());
+        assertEquals("FROM ubuntu:14.04", steps.get(0).getInstruction());
+        assertFalse(steps.get(0).isCached());
+        assertEquals("RUN apt-get update", steps.get(1).getInstruction());
+        assertTrue(steps.get(1).isCached());
+        assertEquals("COPY . /src", steps.get(2).getInstruction());
+        assertFalse(steps.get(2).isCached());
+    }
+
+    @Test
+    public void parse_pulled_layers() throws Exception {
+        String output =
+            "14.04: Pulling from library/ubuntu\n" +
+            "c60055a51d74: Already exists\n" +
+            "755da0cdb7d2: Pulling fs layer\n" +
+            "755da0cdb7d2: Verifying Checksum\n" +
+            "755da0cdb7d2: Download complete\n" +
+            "755da0cdb7d2: Pull complete\n" +
+            "Digest: sha256:b8855dc848e2622653ab557d1ce2f4c34218a9380cceaa51ced85c5f3c8eb201\n" +
+            "Status: Downloaded newer image for ubuntu:14.04";
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DockerPullOutputParser parser = new DockerPullOutputParser(log);
+        parser.write(output.getBytes("UTF-8"));
+        List<DockerReport.Layer> layers = parser.finish();
+
+        assertEquals(output, log.toString("UTF-8"));
+        assertEquals(2, layers.size());
+        assertEquals("c60055a51d74", layers.get(0).getId());
+        assertTrue(layers.get(0).isCached());
+        assertEquals("755da0cdb7d2", layers.get(1).getId());
+        assertFalse(layers.get(1).isCached());
+    }
+}
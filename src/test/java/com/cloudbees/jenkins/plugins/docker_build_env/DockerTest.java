@@ -0,0 +1,76 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class DockerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void terminate_process_group_with_odd_process_names() throws Exception {
+        // terminate script runs inside container, so just need a Linux /proc filesystem and setsid
+        assumeTrue(new File("/proc/self/stat").exists() && new File("/dev/shm").isDirectory() && new File("/bin/sleep").exists()
+                && (new File("/usr/bin/setsid").exists() || new File("/bin/setsid").exists()));
+
+        File sleep = new File(tmp.getRoot(), "x) y (z");
+        Process ln = new ProcessBuilder("ln", "-s", "/bin/sleep", sleep.getPath()).start();
+        assertEquals(0, ln.waitFor());
+
+        String execId = UUID.randomUUID().toString();
+        File pidFile = new File("/dev/shm/.jenkins-exec-" + execId);
+        new ProcessBuilder("setsid", "sh", "-c", "echo $$ > " + pidFile + "; \"$1\" 60", "sh", sleep.getPath()).start();
+        for (int i = 0; i < 50 && pidFile.length() == 0; i++) {
+            Thread.sleep(100);
+        }
+        String leader = FileUtils.readFileToString(pidFile).trim();
+
+        Process terminate = new ProcessBuilder("sh", "-c", Docker.TERMINATE, "sh", execId, "1").start();
+        String output = IOUtils.toString(terminate.getInputStream()).trim();
+        assertEquals(0, terminate.waitFor());
+
+        // wrapper shell and the command it started
+        List<String> pids = Arrays.asList(output.split("\\s+"));
+        assertEquals(2, pids.size());
+        assertTrue(pids.contains(leader));
+        assertFalse(pidFile.exists());
+        for (int i = 0; i < 50 && new File("/proc/" + leader).exists(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(new File("/proc/" + leader).exists());
+    }
+
+    @Test
+    public void terminate_ignores_completed_commands() throws Exception {
+        assumeTrue(new File("/proc/self/stat").exists());
+
+        Process terminate = new ProcessBuilder("sh", "-c", Docker.TERMINATE, "sh", UUID.randomUUID().toString(), "1").start();
+        assertEquals("", IOUtils.toString(terminate.getInputStream()).trim());
+        assertEquals(0, terminate.waitFor());
+    }
+
+    @Test
+    public void select_digest_of_image_repository() {
+        String[] digests = { "mirror.example.com/ubuntu@sha256:aaa", "ubuntu@sha256:bbb", "example/ubuntu@sha256:ccc" };
+        assertEquals("ubuntu@sha256:bbb", Docker.selectDigest("ubuntu:16.04", digests));
+        assertEquals("ubuntu@sha256:bbb", Docker.selectDigest("docker.io/library/ubuntu", digests));
+        assertEquals("example/ubuntu@sha256:ccc", Docker.selectDigest("example/ubuntu:latest", digests));
+        assertEquals("mirror.example.com/ubuntu@sha256:aaa", Docker.selectDigest("mirror.example.com/ubuntu:16.04", digests));
+        assertEquals(null, Docker.selectDigest("localhost:5000/ubuntu", digests));
+        assertEquals(null, Docker.selectDigest("ubuntu", new String[] { "" }));
+    }
+}
@@ -0,0 +1,126 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.EnvVars;
+import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyMaterialCacheTest {
+
+    private static class Material extends KeyMaterial {
+        private boolean closed;
+
+        private Material() {
+            super(new EnvVars("DOCKER_CONFIG", "/tmp/docker-config"));
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+
+    private static class CountingMaterializer implements KeyMaterialCache.Materializer {
+        private int count;
+        private Material last;
+
+        public KeyMaterial materialize() {
+            count++;
+            last = new Material();
+            return last;
+        }
+    }
+
+    /** evict all entries not used since now */
+    private static void evictIdle() throws InterruptedException {
+        Thread.sleep(10);
+        KeyMaterialCache.evict(System.currentTimeMillis());
+    }
+
+    @Test
+    public void share_key_material_between_builds() throws Exception {
+        CountingMaterializer materializer = new CountingMaterializer();
+        KeyMaterial a = KeyMaterialCache.acquire("share", "share|1", materializer);
+        KeyMaterial b = KeyMaterialCache.acquire("share", "share|1", materializer);
+        assertEquals(1, materializer.count);
+        assertEquals("/tmp/docker-config", a.env().get("DOCKER_CONFIG"));
+        assertEquals("/tmp/docker-config", b.env().get("DOCKER_CONFIG"));
+
+        a.close();
+        evictIdle();
+        assertFalse("key material still used", materializer.last.closed);
+
+        // closing a lease twice only releases one reference
+        a.close();
+        evictIdle();
+        assertFalse("key material still used", materializer.last.closed);
+
+        b.close();
+        evictIdle();
+        assertTrue("key material idle", materializer.last.closed);
+
+        KeyMaterialCache.acquire("share", "share|1", materializer).close();
+        assertEquals(2, materializer.count);
+    }
+
+    @Test
+    public void keep_key_material_until_idle_timeout() throws Exception {
+        CountingMaterializer materializer = new CountingMaterializer();
+        KeyMaterialCache.acquire("idle", "idle|1", materializer).close();
+        KeyMaterialCache.evict(System.currentTimeMillis() - 60000);
+        assertFalse(materializer.last.closed);
+
+        KeyMaterialCache.acquire("idle", "idle|1", materializer).close();
+        assertEquals(1, materializer.count);
+        evictIdle();
+        assertTrue(materializer.last.closed);
+    }
+
+    @Test
+    public void close_obsolete_key_material_once_unused() throws Exception {
+        CountingMaterializer before = new CountingMaterializer();
+        CountingMaterializer after = new CountingMaterializer();
+        KeyMaterial a = KeyMaterialCache.acquire("updated", "updated|1", before);
+
+        // credentials updated while key material is in use
+        KeyMaterial b = KeyMaterialCache.acquire("updated", "updated|2", after);
+        assertFalse(before.last.closed);
+        a.close();
+        b.close();
+
+        // next update closes unused key material for the same endpoints
+        KeyMaterialCache.acquire("updated", "updated|3", new CountingMaterializer()).close();
+        assertTrue(before.last.closed);
+        assertTrue(after.last.closed);
+        evictIdle();
+    }
+
+    private static class Credentials {
+        private final String id;
+        private final String password;
+
+        private Credentials(String id, String password) {
+            this.id = id;
+            this.password = password;
+        }
+    }
+
+    private static class OtherCredentials extends Credentials {
+        private OtherCredentials(String id, String password) {
+            super(id, password);
+        }
+    }
+
+    @Test
+    public void fingerprint_depends_on_credentials_content_only() {
+        String fingerprint = KeyMaterialCache.fingerprint(new Credentials("registry", "s3cr3t"));
+        assertEquals(fingerprint, KeyMaterialCache.fingerprint(new Credentials("registry", "s3cr3t")));
+        assertFalse(fingerprint.equals(KeyMaterialCache.fingerprint(new Credentials("registry", "updated"))));
+        assertFalse(fingerprint.equals(KeyMaterialCache.fingerprint(new OtherCredentials("registry", "s3cr3t"))));
+    }
+}
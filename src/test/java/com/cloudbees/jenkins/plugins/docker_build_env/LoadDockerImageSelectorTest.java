@@ -0,0 +1,42 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.FilePath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LoadDockerImageSelectorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void loaded_image_is_recorded() throws Exception {
+        FilePath marker = new FilePath(new File(tmp.getRoot(), "docker-loaded-images/0123456789abcdef"));
+        assertNull(LoadDockerImageSelector.readMarker(marker, "1024:1476000000000"));
+
+        LoadDockerImageSelector.writeMarker(marker, "1024:1476000000000", "sha256:abc");
+        assertEquals("sha256:abc", LoadDockerImageSelector.readMarker(marker, "1024:1476000000000"));
+    }
+
+    @Test
+    public void updated_tarball_is_loaded_again() throws Exception {
+        FilePath marker = new FilePath(new File(tmp.getRoot(), "docker-loaded-images/0123456789abcdef"));
+        LoadDockerImageSelector.writeMarker(marker, "1024:1476000000000", "sha256:abc");
+
+        assertNull(LoadDockerImageSelector.readMarker(marker, "2048:1476000000000"));
+        assertNull(LoadDockerImageSelector.readMarker(marker, "1024:1476000001000"));
+    }
+
+    @Test
+    public void malformed_marker_is_ignored() throws Exception {
+        FilePath marker = new FilePath(new File(tmp.getRoot(), "marker"));
+        marker.write("1024:1476000000000", "UTF-8");
+        assertNull(LoadDockerImageSelector.readMarker(marker, "1024:1476000000000"));
+    }
+}
@@ -0,0 +1,72 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NodeResourceAllocatorTest {
+
+    private static final long GB = 1024L * 1024 * 1024;
+
+    private static NodeResourceAllocator allocator(String cpus, int executors, String... numaNodes) {
+        List<BitSet> numa = new ArrayList<BitSet>();
+        for (String node : numaNodes) {
+            numa.add(NodeResourceAllocator.parseCpuList(node));
+        }
+        return new NodeResourceAllocator(
+                new NodeResourceAllocator.Topology(NodeResourceAllocator.parseCpuList(cpus), numa, 10 * GB), executors);
+    }
+
+    @Test
+    public void parse_cpu_list() {
+        BitSet cpus = NodeResourceAllocator.parseCpuList("0-3,8-9,12");
+        assertEquals("{0, 1, 2, 3, 8, 9, 12}", cpus.toString());
+        assertEquals(0, NodeResourceAllocator.parseCpuList("").cardinality());
+    }
+
+    @Test
+    public void allocate_disjoint_cpusets_within_numa_nodes() {
+        NodeResourceAllocator allocator = allocator("0-7", 2, "0-3", "4-7");
+        NodeResourceAllocator.Allocation a = allocator.allocate();
+        NodeResourceAllocator.Allocation b = allocator.allocate();
+        assertEquals("0-3", a.getCpuset());
+        assertEquals("4-7", b.getCpuset());
+        assertEquals(10 * GB * 90 / 100 / 2, a.getMemory());
+
+        // more containers than executors
+        assertNull(allocator.allocate().getCpuset());
+
+        a.release();
+        a.release();
+        assertEquals("0-3", allocator.allocate().getCpuset());
+        assertNull(allocator.allocate().getCpuset());
+    }
+
+    @Test
+    public void only_allocate_cpus_docker_can_use() {
+        // CPUs 2-3 and 6-7 are offline or isolated
+        NodeResourceAllocator allocator = allocator("0-1,4-5", 2, "0-3", "4-7");
+        assertEquals("0-1", allocator.allocate().getCpuset());
+        assertEquals("4-5", allocator.allocate().getCpuset());
+    }
+
+    @Test
+    public void allocate_across_numa_nodes_when_required() {
+        NodeResourceAllocator allocator = allocator("0-5", 2, "0-1", "2-5");
+        assertEquals("2-4", allocator.allocate().getCpuset());
+        assertEquals("0-1,5", allocator.allocate().getCpuset());
+    }
+
+    @Test
+    public void skip_cpuset_when_cpus_are_unknown() {
+        NodeResourceAllocator allocator = allocator("", 4);
+        NodeResourceAllocator.Allocation a = allocator.allocate();
+        assertNull(a.getCpuset());
+        assertEquals(10 * GB * 90 / 100 / 4, a.getMemory());
+    }
+}
@@ -0,0 +1,62 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PullDockerImageSelectorTest {
+
+    private static PullDockerImageSelector selector(PullDockerImageSelector.PullPolicy policy) {
+        PullDockerImageSelector selector = new PullDockerImageSelector("ubuntu");
+        selector.setPullPolicy(policy);
+        return selector;
+    }
+
+    @Test
+    public void never_pull() {
+        PullDockerImageSelector selector = selector(PullDockerImageSelector.PullPolicy.NEVER);
+        assertFalse(selector.isPullRequired("node", "never:1", true));
+        assertFalse(selector.isPullRequired("node", "never:1", false));
+    }
+
+    @Test
+    public void always_pull() {
+        PullDockerImageSelector selector = selector(PullDockerImageSelector.PullPolicy.ALWAYS);
+        assertTrue(selector.isPullRequired("node", "always:1", true));
+        assertTrue(selector.isPullRequired("node", "always:1", false));
+    }
+
+    @Test
+    public void pull_if_missing() {
+        PullDockerImageSelector selector = selector(PullDockerImageSelector.PullPolicy.IF_MISSING);
+        assertFalse(selector.isPullRequired("node", "missing:1", true));
+        assertTrue(selector.isPullRequired("node", "missing:1", false));
+    }
+
+    @Test
+    public void default_policy_pulls_if_missing() {
+        PullDockerImageSelector selector = new PullDockerImageSelector("ubuntu");
+        selector.setPullPolicy(null);
+        assertFalse(selector.isPullRequired("node", "default:1", true));
+        assertTrue(selector.isPullRequired("node", "default:1", false));
+    }
+
+    @Test
+    public void check_for_update_once_per_interval_and_node() {
+        PullDockerImageSelector selector = selector(PullDockerImageSelector.PullPolicy.CHECK_DIGEST);
+        assertTrue(selector.isPullRequired("node", "updated:1", true));
+        // a failed check isn't recorded, so is retried by next build
+        assertTrue(selector.isPullRequired("node", "updated:1", true));
+
+        selector.checked("node", "updated:1");
+        assertFalse(selector.isPullRequired("node", "updated:1", true));
+        assertTrue(selector.isPullRequired("other", "updated:1", true));
+        assertTrue(selector.isPullRequired("node", "updated:2", true));
+        // missing image is pulled whatever last check
+        assertTrue(selector.isPullRequired("node", "updated:1", false));
+
+        selector.setCheckInterval(0);
+        assertTrue(selector.isPullRequired("node", "updated:1", true));
+    }
+}
@@ -0,0 +1,39 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResourceUsageTest {
+
+    @Test
+    public void peaks_survive_downsampling() {
+        ResourceUsage usage = new ResourceUsage();
+        long cpu = 0;
+        for (int i = 0; i < 1000; i++) {
+            // a single 1s period using 4 CPUs, and a memory spike, both on odd samples
+            long used = i == 501 ? 4 : 1;
+            cpu += TimeUnit.SECONDS.toNanos(used);
+            usage.add(new ResourceUsage.Sample(TimeUnit.SECONDS.toMillis(i), cpu, i == 301 ? 1000 : 100, 0, 0));
+        }
+
+        assertTrue(usage.getSamples().size() < 1000);
+        assertEquals(1000, usage.getPeakMemory());
+        assertEquals(4.0, usage.getPeakCpu(), 0.01);
+    }
+
+    @Test
+    public void totals_are_kept_when_downsampling() {
+        ResourceUsage usage = new ResourceUsage();
+        for (int i = 0; i < 1000; i++) {
+            usage.add(new ResourceUsage.Sample(TimeUnit.SECONDS.toMillis(i), TimeUnit.SECONDS.toNanos(i) / 2, 0, 10 * i, 20 * i));
+        }
+
+        assertEquals(0.5, usage.getAverageCpu(), 0.01);
+        assertEquals(9990, usage.getBlockIO());
+        assertEquals(19980, usage.getNetworkIO());
+    }
+}
@@ -0,0 +1,142 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SidecarStartTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Service which start and readiness check block until released.
+     */
+    private static class Service extends DockerBuildWrapper.SidecarStart {
+        private final CountDownLatch starting = new CountDownLatch(1);
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch checking = new CountDownLatch(1);
+        private final CountDownLatch ready = new CountDownLatch(1);
+        private volatile int starts;
+        private volatile boolean checked;
+        private volatile boolean interrupted;
+
+        @Override
+        protected String start() throws InterruptedException {
+            starts++;
+            starting.countDown();
+            started.await();
+            return "container";
+        }
+
+        @Override
+        protected void waitUntilReady(String id) throws InterruptedException {
+            checked = true;
+            checking.countDown();
+            try {
+                ready.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                throw e;
+            }
+        }
+    }
+
+    private Service submit() {
+        Service service = new Service();
+        service.future = executor.submit(service);
+        return service;
+    }
+
+    private static void await(final DockerBuildWrapper.SidecarStart service) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    service.await();
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    // latch not released, so assertion below fails
+                }
+            }
+        };
+        t.start();
+        assertTrue("service start should be completed", done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancel_pending_start() throws Exception {
+        // executor is busy, so service start is queued
+        final CountDownLatch busy = new CountDownLatch(1);
+        executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                busy.await();
+                return null;
+            }
+        });
+        Service service = submit();
+
+        service.cancel();
+        await(service);
+        assertTrue(service.future.isCancelled());
+
+        busy.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, service.starts);
+    }
+
+    @Test
+    public void cancel_while_starting_lets_container_start_but_skips_check() throws Exception {
+        Service service = submit();
+        assertTrue(service.starting.await(5, TimeUnit.SECONDS));
+
+        service.cancel();
+        // docker run isn't interrupted, so container ID is recorded
+        service.started.countDown();
+        await(service);
+        assertFalse(service.future.isCancelled());
+        service.future.get(5, TimeUnit.SECONDS);
+        assertEquals(1, service.starts);
+        assertFalse(service.checked);
+    }
+
+    @Test
+    public void cancel_while_checking_interrupts_check() throws Exception {
+        Service service = submit();
+        service.started.countDown();
+        assertTrue(service.checking.await(5, TimeUnit.SECONDS));
+
+        service.cancel();
+        await(service);
+        assertTrue(service.future.isCancelled());
+        assertTrue(service.interrupted);
+    }
+
+    @Test
+    public void completed_start_is_not_cancelled() throws Exception {
+        Service service = submit();
+        service.started.countDown();
+        service.ready.countDown();
+        service.future.get(5, TimeUnit.SECONDS);
+
+        service.cancel();
+        await(service);
+        assertFalse(service.future.isCancelled());
+        assertTrue(service.checked);
+    }
+}
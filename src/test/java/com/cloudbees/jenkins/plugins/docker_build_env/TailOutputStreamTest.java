@@ -0,0 +1,28 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TailOutputStreamTest {
+
+    @Test
+    public void keep_whole_output_when_small() throws Exception {
+        TailOutputStream tail = new TailOutputStream(16);
+        tail.write("hello".getBytes("UTF-8"));
+        tail.write(' ');
+        tail.write("world".getBytes("UTF-8"));
+        assertEquals("hello world", tail.toString());
+    }
+
+    @Test
+    public void keep_last_bytes_only() throws Exception {
+        TailOutputStream tail = new TailOutputStream(8);
+        tail.write("0123456".getBytes("UTF-8"));
+        tail.write("789ab".getBytes("UTF-8"));
+        assertEquals("[...]456789ab", tail.toString());
+
+        tail.write("cdefghijklmnop".getBytes("UTF-8"));
+        assertEquals("[...]ijklmnop", tail.toString());
+    }
+}
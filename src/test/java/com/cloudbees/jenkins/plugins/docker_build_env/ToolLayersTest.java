@@ -0,0 +1,66 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ToolLayersTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void layers_used_by_other_chains_are_parents() {
+        Map<String, String> imageIds = new HashMap<String, String>();
+        Map<String, String> parentIds = new HashMap<String, String>();
+        // jdk layer shared by two jobs, each one adding its own maven on top
+        imageIds.put("jenkins-tools:jdk", "sha256:jdk");
+        parentIds.put("jenkins-tools:jdk", "sha256:base");
+        imageIds.put("jenkins-tools:maven-a", "sha256:maven-a");
+        parentIds.put("jenkins-tools:maven-a", "sha256:jdk");
+        imageIds.put("jenkins-tools:maven-b", "sha256:maven-b");
+        parentIds.put("jenkins-tools:maven-b", "sha256:jdk");
+        // layer baked on a pulled image
+        imageIds.put("jenkins-tools:other", "sha256:other");
+        parentIds.put("jenkins-tools:other", "");
+
+        assertEquals(Collections.singleton("jenkins-tools:jdk"), ToolLayers.getParents(imageIds, parentIds));
+    }
+
+    @Test
+    public void installed_version_from_installer_marker() throws Exception {
+        File home = tmp.newFolder("jdk");
+        FileUtils.writeStringToFile(new File(home, ".installedFrom"), "http://example.com/jdk-8u101.tar.gz");
+        FileUtils.writeStringToFile(new File(home, "bin/java"), "java");
+        String version = new ToolLayers.GetInstalledVersion().invoke(home, null);
+
+        // binaries are ignored when a marker is present
+        FileUtils.writeStringToFile(new File(home, "bin/javac"), "javac");
+        assertEquals(version, new ToolLayers.GetInstalledVersion().invoke(home, null));
+
+        FileUtils.writeStringToFile(new File(home, ".installedFrom"), "http://example.com/jdk-8u102.tar.gz");
+        assertFalse(version.equals(new ToolLayers.GetInstalledVersion().invoke(home, null)));
+    }
+
+    @Test
+    public void installed_version_from_binaries_without_marker() throws Exception {
+        File home = tmp.newFolder("maven");
+        FileUtils.writeStringToFile(new File(home, "bin/mvn"), "mvn");
+        FileUtils.writeStringToFile(new File(home, "lib/maven-core-3.3.9.jar"), "core");
+        String version = new ToolLayers.GetInstalledVersion().invoke(home, null);
+        assertEquals(version, new ToolLayers.GetInstalledVersion().invoke(home, null));
+
+        new File(home, "lib/maven-core-3.3.9.jar").delete();
+        FileUtils.writeStringToFile(new File(home, "lib/maven-core-3.5.0.jar"), "core");
+        assertFalse(version.equals(new ToolLayers.GetInstalledVersion().invoke(home, null)));
+    }
+}
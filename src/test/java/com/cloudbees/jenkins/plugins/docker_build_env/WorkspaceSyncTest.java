@@ -0,0 +1,109 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkspaceSyncTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File ws;
+    private File manifest;
+    private File tarball;
+    private File paths;
+
+    @Before
+    public void setUp() throws IOException {
+        ws = tmp.newFolder("ws");
+        manifest = new File(tmp.getRoot(), "docker-sync.properties");
+        tarball = new File(tmp.getRoot(), "docker-sync.tar");
+        paths = new File(tmp.getRoot(), "docker-sync.paths");
+    }
+
+    private WorkspaceSync.Changes push() throws Exception {
+        tarball.delete();
+        paths.delete();
+        WorkspaceSync.Changes changes = new WorkspaceSync.ComputeChanges(manifest.getPath(), tarball.getPath(), paths.getPath()).invoke(ws, null);
+        // synchronization succeeded
+        new File(manifest.getPath() + ".new").renameTo(manifest);
+        return changes;
+    }
+
+    private void write(String path, String content) throws IOException {
+        FileUtils.writeStringToFile(new File(ws, path), content);
+    }
+
+    @Test
+    public void initial_push_sends_all_files() throws Exception {
+        write("a.txt", "a");
+        write("sub/b.txt", "b");
+
+        WorkspaceSync.Changes changes = push();
+        assertEquals(2, changes.changed);
+        assertTrue(changes.deleted.isEmpty());
+        assertTrue(tarball.length() > 0);
+        assertFalse(paths.exists());
+    }
+
+    @Test
+    public void unchanged_workspace_sends_nothing() throws Exception {
+        write("a.txt", "a");
+        push();
+
+        WorkspaceSync.Changes changes = push();
+        assertTrue(changes.isEmpty());
+        assertFalse(tarball.exists());
+        assertFalse(paths.exists());
+    }
+
+    @Test
+    public void deletions_only_write_path_list_without_tarball() throws Exception {
+        write("a.txt", "a");
+        write("sub/b c.txt", "b");
+        push();
+
+        new File(ws, "a.txt").delete();
+        new File(ws, "sub/b c.txt").delete();
+        WorkspaceSync.Changes changes = push();
+        assertEquals(0, changes.changed);
+        assertFalse(tarball.exists());
+
+        String[] deleted = FileUtils.readFileToString(paths, "UTF-8").split("\0");
+        Arrays.sort(deleted);
+        assertEquals(Arrays.asList("a.txt", "sub/b c.txt"), Arrays.asList(deleted));
+    }
+
+    @Test
+    public void files_deleted_in_volume_are_removed_from_workspace() throws Exception {
+        write("kept.txt", "k");
+        write("sub/deleted.txt", "d");
+        push();
+        // created after last synchronization, unknown to volume
+        write("local.txt", "l");
+
+        FileUtils.writeStringToFile(paths, "./kept.txt\0./created.txt\0", "UTF-8");
+        int removed = new WorkspaceSync.RemoveDeleted(manifest.getPath(), paths.getPath()).invoke(ws, null);
+        assertEquals(1, removed);
+        assertTrue(new File(ws, "kept.txt").exists());
+        assertTrue(new File(ws, "local.txt").exists());
+        assertFalse(new File(ws, "sub/deleted.txt").exists());
+
+        // manifest updated after pull, so deletion isn't sent back
+        new WorkspaceSync.ComputeChanges(manifest.getPath(), null, null).invoke(ws, null);
+        WorkspaceSync.Changes changes = push();
+        assertEquals(Collections.<String>emptyList(), changes.deleted);
+    }
+}